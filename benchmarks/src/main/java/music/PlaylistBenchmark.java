@@ -0,0 +1,258 @@
+package music;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the PlaylistLibrary operations with JMH, on
+ * synthetic playlists of size songs shaped like playlist1.csv:
+ *
+ *      Song Ai,Artist (i % 500),2010,popularity,SongAi.wav
+ *
+ * in decreasing popularity order. The library keeps a song index, like a
+ * library with setIndexSongs(true).
+ *
+ * insertSong* inserts a song at the head, middle or tail, and an untimed
+ * teardown removes it again after every call, so the playlist keeps its
+ * size however long they run. removeSong* removes a song that an untimed
+ * setup has inserted at the head, middle or tail before every call.
+ * sortPlaylist sorts a freshly shuffled playlist and mergePlaylists merges
+ * two fresh halves, also built in an untimed setup before every call. The
+ * allocation that -prof gc reports for the benchmarks with such a setup or
+ * teardown includes the allocation of that setup or teardown.
+ *
+ * A library of 10M songs and the songs of mergePlaylists take about 4 GB,
+ * so most of the time measured at that size with the default heap is spent
+ * in the collector; give the fork a larger heap with -jvmArgsAppend
+ * -Xmx12g where the machine has it.
+ *
+ * See benchmarks/pom.xml for how to build and run.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PlaylistBenchmark {
+    private static final int ARTISTS = 500;  // distinct artists in a synthetic playlist
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private PlaylistLibrary library;
+    private int             middle;
+    private Song            inserted;
+
+    @Setup
+    public void setUp() {
+        library = new PlaylistLibrary(new ArrayList<Playlist>());
+        library.getPlaylists().add(generate(songs(size, "A")));
+        library.setIndexSongs(true);
+        middle = size / 2 + 1;
+        inserted = new Song("Inserted", "Bench", 2010, 50, "Inserted.wav");
+    }
+
+    @Benchmark
+    public boolean insertSongHead(Inserting inserting) {
+        return library.insertSong(0, 1, inserted);
+    }
+
+    @Benchmark
+    public boolean insertSongMiddle(Inserting inserting) {
+        return library.insertSong(0, middle, inserted);
+    }
+
+    @Benchmark
+    public boolean insertSongTail(Inserting inserting) {
+        return library.insertSong(0, size + 1, inserted);
+    }
+
+    @Benchmark
+    public boolean removeSongHead(AtHead atHead) {
+        return library.removeSong(0, inserted);
+    }
+
+    @Benchmark
+    public boolean removeSongMiddle(AtMiddle atMiddle) {
+        return library.removeSong(0, inserted);
+    }
+
+    @Benchmark
+    public boolean removeSongTail(AtTail atTail) {
+        return library.removeSong(0, inserted);
+    }
+
+    @Benchmark
+    public Playlist reversePlaylist() {
+        library.reversePlaylist(0);
+        return library.getPlaylists().get(0);
+    }
+
+    @Benchmark
+    public Playlist shufflePlaylist() {
+        library.shufflePlaylist(0);
+        return library.getPlaylists().get(0);
+    }
+
+    @Benchmark
+    public Playlist sortPlaylist(Shuffled shuffled) {
+        library.sortPlaylist(0);
+        return library.getPlaylists().get(0);
+    }
+
+    @Benchmark
+    public Playlist mergePlaylists(Halves halves) {
+        halves.library.mergePlaylists(0, 1);
+        return halves.library.getPlaylists().get(0);
+    }
+
+    @Benchmark
+    public Playlist createPlaylist(Csv csv) {
+        return library.createPlaylist(csv.file.getPath());
+    }
+
+    /*
+     * Removes the song an insertSong benchmark inserted after every call
+     */
+    @State(Scope.Thread)
+    public static class Inserting {
+        @TearDown(Level.Invocation)
+        public void remove(PlaylistBenchmark bench) {
+            bench.library.removeSong(0, bench.inserted);
+        }
+    }
+
+    /*
+     * Insert the song a removeSong benchmark removes before every call, at
+     * the head, middle or tail
+     */
+    @State(Scope.Thread)
+    public static class AtHead {
+        @Setup(Level.Invocation)
+        public void insert(PlaylistBenchmark bench) {
+            bench.library.insertSong(0, 1, bench.inserted);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AtMiddle {
+        @Setup(Level.Invocation)
+        public void insert(PlaylistBenchmark bench) {
+            bench.library.insertSong(0, bench.middle, bench.inserted);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AtTail {
+        @Setup(Level.Invocation)
+        public void insert(PlaylistBenchmark bench) {
+            bench.library.insertSong(0, bench.size + 1, bench.inserted);
+        }
+    }
+
+    /*
+     * Shuffles the playlist of the library before every sortPlaylist
+     */
+    @State(Scope.Thread)
+    public static class Shuffled {
+        @Setup(Level.Invocation)
+        public void shuffle(PlaylistBenchmark bench) {
+            bench.library.shufflePlaylist(0);
+        }
+    }
+
+    /*
+     * Two playlists of size / 2 songs for every mergePlaylists. The songs
+     * are made once; only the rings are built again.
+     */
+    @State(Scope.Thread)
+    public static class Halves {
+        private Song[]          lower;
+        private Song[]          higher;
+        private PlaylistLibrary library;
+
+        @Setup
+        public void makeSongs(PlaylistBenchmark bench) {
+            lower = songs(bench.size / 2, "A");
+            higher = songs(bench.size - bench.size / 2, "B");
+        }
+
+        @Setup(Level.Invocation)
+        public void link() {
+            library = new PlaylistLibrary(new ArrayList<Playlist>());
+            library.getPlaylists().add(generate(lower));
+            library.getPlaylists().add(generate(higher));
+        }
+    }
+
+    /*
+     * A csv file of size songs for createPlaylist
+     */
+    @State(Scope.Thread)
+    public static class Csv {
+        private File file;
+
+        @Setup
+        public void write(PlaylistBenchmark bench) throws IOException {
+            file = File.createTempFile("playlist-bench", ".csv");
+            try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+                for (int i = 0; i < bench.size; i++) {
+                    Song s = song("C", i, bench.size);
+                    out.print(s.getSongName() + "," + s.getArtist() + "," + s.getYear() + "," + s.getPopularity() + ",SongC" + i + ".wav\n");
+                }
+            }
+        }
+
+        @TearDown
+        public void delete() {
+            file.delete();
+        }
+    }
+
+    private static Song[] songs(int size, String tag) {
+        Song[] songs = new Song[size];
+        for (int i = 0; i < size; i++) {
+            songs[i] = song(tag, i, size);
+        }
+        return songs;
+    }
+
+    private static Song song(String tag, int i, int size) {
+        int popularity = 99 - (int) (99L * i / Math.max(1, size));
+        return new Song("Song " + tag + i, "Artist " + (i % ARTISTS), 2010, popularity, "Song" + tag + i + ".wav");
+    }
+
+    // links the songs into a circular linked list, in order
+    private static Playlist generate(Song[] songs) {
+        SongNode first = null;
+        SongNode last = null;
+        for (Song song : songs) {
+            SongNode node = new SongNode(song, null);
+            if (first == null) first = node;
+            else last.setNext(node);
+            last = node;
+        }
+        if (last != null) last.setNext(first);
+        return new Playlist(last, songs.length);
+    }
+}
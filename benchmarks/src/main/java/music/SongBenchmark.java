@@ -0,0 +1,158 @@
+package music;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class compares Song.hashCode and Song.equals with the versions they
+ * replaced, which computed the hash on every call and compared songName,
+ * artist, year and popularity in that order through the getters.
+ *
+ * Every call walks SONGS songs shaped like playlist1.csv, so the results are
+ * per song. copies holds an equal but distinct Song for every song, whose
+ * Strings are interned like in a loaded library; others holds a song with
+ * the same year and popularity and a different name, the case where the old
+ * equals compared Strings before it could reject.
+ *
+ * See benchmarks/pom.xml for how to build and run.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SongBenchmark {
+    private static final int SONGS = 1 << 16;
+    private static final int ARTISTS = 500;  // distinct artists, as in PlaylistBenchmark
+
+    private Song[] songs;
+    private Song[] copies;
+    private Song[] others;
+
+    @Setup
+    public void setUp() {
+        songs = new Song[SONGS];
+        copies = new Song[SONGS];
+        others = new Song[SONGS];
+        for (int i = 0; i < SONGS; i++) {
+            songs[i] = song(i, i);
+            copies[i] = song(i, i);
+            others[i] = song(i + 1, i);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SONGS)
+    public int hashCodeCached() {
+        int sum = 0;
+        for (Song s : songs) {
+            sum += s.hashCode();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SONGS)
+    public int hashCodeComputed() {
+        int sum = 0;
+        for (Song s : songs) {
+            sum += computedHashCode(s);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SONGS)
+    public int equalsEqual() {
+        int hits = 0;
+        for (int i = 0; i < SONGS; i++) {
+            if (songs[i].equals(copies[i])) hits++;
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SONGS)
+    public int equalsEqualFieldByField() {
+        int hits = 0;
+        for (int i = 0; i < SONGS; i++) {
+            if (fieldByFieldEquals(songs[i], copies[i])) hits++;
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SONGS)
+    public int equalsUnequal() {
+        int hits = 0;
+        for (int i = 0; i < SONGS; i++) {
+            if (songs[i].equals(others[i])) hits++;
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SONGS)
+    public int equalsUnequalFieldByField() {
+        int hits = 0;
+        for (int i = 0; i < SONGS; i++) {
+            if (fieldByFieldEquals(songs[i], others[i])) hits++;
+        }
+        return hits;
+    }
+
+    // song number n of the synthetic playlist, with the year and popularity of song i
+    private static Song song(int n, int i) {
+        int popularity = 99 - (int) (99L * i / SONGS);
+        return new Song("Song A" + n, "Artist " + (n % ARTISTS), 2010, popularity, "SongA" + n + ".wav");
+    }
+
+    // Song.hashCode before the hash was cached
+    private static int computedHashCode(Song s) {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((s.getSongName() == null) ? 0 : s.getSongName().hashCode());
+        result = prime * result + ((s.getArtist() == null) ? 0 : s.getArtist().hashCode());
+        result = prime * result + s.getYear();
+        result = prime * result + s.getPopularity();
+        return result;
+    }
+
+    // Song.equals before it rejected on year, popularity and the cached hash first
+    private static boolean fieldByFieldEquals(Song a, Song b) {
+        if (a == b)
+            return true;
+        if (b == null)
+            return false;
+        if (a.getClass() != b.getClass())
+            return false;
+        if (a.getSongName() == null) {
+            if (b.getSongName() != null)
+                return false;
+        } else if (!a.getSongName().equals(b.getSongName()))
+            return false;
+        if (a.getArtist() == null) {
+            if (b.getArtist() != null)
+                return false;
+        } else if (!a.getArtist().equals(b.getArtist()))
+            return false;
+        if (a.getYear() != b.getYear())
+            return false;
+        if (a.getPopularity() != b.getPopularity())
+            return false;
+        return true;
+    }
+}
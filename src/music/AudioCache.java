@@ -0,0 +1,140 @@
+package music;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is a least-recently-used cache of decoded audio, used by
+ * StdAudio.read() so that playing the same file again does not decode it
+ * again.
+ *
+ * Entries are keyed by file path and remember the file's modification time;
+ * an entry whose file has changed since it was decoded counts as a miss and
+ * is replaced. Samples are stored as 16-bit PCM (short[]), a quarter of the
+ * size of the double[] that read() returns. When the stored samples exceed
+ * the byte budget, the least recently used entries are evicted.
+ *
+ * All methods are thread-safe.
+ */
+
+public class AudioCache {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxBytes;   // byte budget for the stored samples
+    private long bytes;      // bytes currently stored
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxBytes the most bytes of samples the cache may hold
+     * @throws IllegalArgumentException if maxBytes is negative
+     */
+    public AudioCache(long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Returns the cached samples of path, if they were decoded from the file
+     * as it was at lastModified.
+     *
+     * @param path the path of the audio file
+     * @param lastModified the file's current modification time
+     * @return the samples, or null on a miss
+     */
+    public synchronized short[] get(String path, long lastModified) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.lastModified != lastModified) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.samples;
+    }
+
+    /**
+     * Stores the decoded samples of path, replacing any older entry and
+     * evicting least recently used entries to stay within the budget.
+     * Samples larger than the whole budget are not stored.
+     *
+     * @param path the path of the audio file
+     * @param lastModified the file's modification time when it was decoded
+     * @param samples the decoded samples; the array must not be modified afterwards
+     */
+    public synchronized void put(String path, long lastModified, short[] samples) {
+        Entry old = entries.remove(path);
+        if (old != null) {
+            bytes -= old.bytes();
+        }
+        Entry entry = new Entry(lastModified, samples);
+        if (entry.bytes() > maxBytes) {
+            return;
+        }
+        entries.put(path, entry);
+        bytes += entry.bytes();
+        trim();
+    }
+
+    /**
+     * Changes the byte budget, evicting entries if the cache holds more.
+     *
+     * @param maxBytes the most bytes of samples the cache may hold
+     * @throws IllegalArgumentException if maxBytes is negative
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Removes every entry. The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getMaxBytes() { return maxBytes; }
+    public synchronized long getBytes()    { return bytes; }
+    public synchronized int  size()        { return entries.size(); }
+    public synchronized long hits()        { return hits; }
+    public synchronized long misses()      { return misses; }
+    public synchronized long evictions()   { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AudioCache[%d entries, %d/%d bytes, %d hits, %d misses, %d evictions]",
+                entries.size(), bytes, maxBytes, hits, misses, evictions);
+    }
+
+    // evicts least recently used entries until the cache is within budget
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static class Entry {
+        private final long    lastModified;
+        private final short[] samples;
+
+        Entry(long lastModified, short[] samples) {
+            this.lastModified = lastModified;
+            this.samples = samples;
+        }
+
+        long bytes() {
+            return 2L * samples.length;
+        }
+    }
+}
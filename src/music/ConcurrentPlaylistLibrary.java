@@ -0,0 +1,671 @@
+package music;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a PlaylistLibrary that may be used from many threads at once.
+ *
+ * Two kinds of locks are used, always taken in this order:
+ *
+ *  - the library lock guards which playlist is at which index. Methods that
+ *    address a playlist by index hold it for reading; methods that add,
+ *    remove or replace playlists hold it for writing.
+ *  - every playlist has a lock of its own, held by the methods that change
+ *    its songs, so writers of different playlists never wait for each other.
+ *
+ * mergePlaylists merges the songs holding the library lock for reading and
+ * the locks of the merged playlists, taken in increasing index order, so
+ * only the playlists being merged wait for it. It keeps the playlist locks
+ * while it takes the library lock for writing to remove the emptied
+ * playlists. A thread that finds a playlist lock taken therefore never waits
+ * for it holding the library lock: it lets go of every lock, waits for that
+ * playlist alone and starts over.
+ *
+ * Readers take no lock at all. After every change the writer publishes a
+ * PersistentPlaylist holding the playlist's new songs, and printPlaylist,
+ * printLibrary, playPlaylist, decodePlaylist and saveSnapshot read those
+ * immutable snapshots instead of the SongNodes being rewired. insertSong and
+ * removeSong derive the new snapshot from the old one in O(log n); methods
+ * that reorder a whole playlist copy it again, which costs no more than the
+ * reordering itself. getSnapshot() gives other readers the same view. The
+ * snapshots of merged playlists are published once the emptied playlists
+ * are gone, so readers never see a song twice.
+ *
+ * Every playlist put into the library is replaced by an IndexedPlaylist
+ * sharing its nodes (see indexPlaylist), whose tree gives insertSong and
+ * removeSong the position of a song in O(log n), at the cost of one tree
+ * node per song.
+ *
+ * The find methods of the library index hold the library lock for reading,
+ * as the index looks up which playlist is at which index. exportPlaylist
+ * holds the lock of the playlist it writes, and exportPlaylists the locks of
+ * every playlist, so none can change between the walk and the record of
+ * what was exported.
+ *
+ * With a mutation log open (see openLog), writers of different playlists
+ * append their records at the same time and share the forces to disk. A
+ * checkpoint needs the whole library, so it holds the library lock for
+ * writing; a writer whose record fills up the log takes the checkpoint once
+ * it has released its own locks.
+ *
+ * getPlaylists() returns the list itself, which must not be used while
+ * other threads use the library.
+ */
+
+public class ConcurrentPlaylistLibrary extends PlaylistLibrary {
+    private final ReentrantReadWriteLock libraryLock = new ReentrantReadWriteLock();
+
+    // one lock per playlist object; removed playlists are dropped with their keys
+    private final Map<Playlist, ReentrantReadWriteLock> playlistLocks =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    // shufflePlaylist seeds the shared StdRandom, so shuffles run one at a time
+    private static final Object SHUFFLE_LOCK = new Object();
+
+    // the csv writer of the library is shared, so exports run one at a time
+    private final Object exportLock = new Object();
+
+    /*
+     * The published songs of every playlist, by index. The array is replaced
+     * holding the library lock for writing; element i is replaced holding the
+     * library lock for reading and the lock of the playlist at index i.
+     */
+    private volatile AtomicReferenceArray<PersistentPlaylist> snapshots = new AtomicReferenceArray<>(0);
+
+    // the playlists the snapshots were taken from; only used under the library write lock
+    private Playlist[] published = new Playlist[0];
+
+    // set by a writer of one playlist when the mutation log is due for a checkpoint
+    private volatile boolean checkpointPending;
+
+    public ConcurrentPlaylistLibrary(ArrayList<Playlist> songLibrary) {
+        super(songLibrary);
+        republish();
+    }
+
+    public ConcurrentPlaylistLibrary() {
+        super();
+    }
+
+    /* Methods that change which playlist is at which index */
+
+    @Override
+    public void addPlaylist(String filename, int playlistIndex) {
+        // parse outside the lock, the list only has to be locked to insert
+        Playlist playlist = createPlaylist(filename);
+        writeLibrary(() -> {
+            ArrayList<Playlist> songLibrary = getPlaylists();
+            if (songLibrary == null) {
+                songLibrary = new ArrayList<Playlist>();
+                setPlaylists(songLibrary);
+            }
+            if (playlistIndex >= songLibrary.size()) {
+                songLibrary.add(playlist);
+            } else {
+                songLibrary.add(playlistIndex, playlist);
+            }
+            playlistAdded();  // createPlaylist counted it before the lock was taken
+            republish();
+            return null;
+        });
+    }
+
+    @Override
+    public boolean removePlaylist(int playlistIndex) {
+        return writePlaylist(playlistIndex, () -> republish(super.removePlaylist(playlistIndex)));
+    }
+
+    @Override
+    public long[] addAllPlaylists(String[] filenames, int threads) {
+        return writeLibrary(() -> republish(super.addAllPlaylists(filenames, threads)));
+    }
+
+    @Override
+    public IndexedPlaylist indexPlaylist(int playlistIndex) {
+        return writePlaylist(playlistIndex, () -> republish(index(playlistIndex)));
+    }
+
+    @Override
+    public void setIndexSongs(boolean enabled) {
+        writeLibrary(() -> {
+            super.setIndexSongs(enabled);
+            return null;
+        });
+    }
+
+    @Override
+    public void setIndexLibrary(boolean enabled) {
+        writeLibrary(() -> {
+            super.setIndexLibrary(enabled);
+            return null;
+        });
+    }
+
+    @Override
+    public void loadSnapshot(String filename) {
+        writeLibrary(() -> {
+            super.loadSnapshot(filename);
+            return republish(null);
+        });
+    }
+
+    @Override
+    public void setPlaylists(ArrayList<Playlist> p) {
+        libraryLock.writeLock().lock();
+        try {
+            super.setPlaylists(p);
+            republish();
+        }
+        finally {
+            libraryLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void mergePlaylists(int playlistIndex1, int playlistIndex2) {
+        merge(new int[] {playlistIndex1, playlistIndex2}, indexes -> mergeSongs(indexes[0], indexes[1]));
+    }
+
+    @Override
+    public void mergePlaylists(int... playlistIndexes) {
+        merge(playlistIndexes, this::mergeSongs);
+    }
+
+    @Override
+    public void openLog(String snapshotFile, String logFile, int syncEvery, long syncMillis) {
+        writeLibrary(() -> {
+            super.openLog(snapshotFile, logFile, syncEvery, syncMillis);
+            return republish(null);
+        });
+    }
+
+    @Override
+    public void checkpoint() {
+        if (libraryLock.getReadHoldCount() > 0 && !libraryLock.isWriteLockedByCurrentThread()) {
+            // the read lock can not be upgraded; withPlaylist checkpoints after releasing it
+            checkpointPending = true;
+            return;
+        }
+        writeLibrary(() -> {
+            checkpointPending = false;
+            super.checkpoint();
+            return null;
+        });
+    }
+
+    @Override
+    public void closeLog() {
+        writeLibrary(() -> {
+            super.closeLog();
+            return null;
+        });
+    }
+
+    @Override
+    void restorePlaylist(int playlistIndex, Playlist playlist) {
+        writeLibrary(() -> {
+            super.restorePlaylist(playlistIndex, playlist);
+            return republish(null);
+        });
+    }
+
+    /* Methods that change the songs of one playlist */
+
+    @Override
+    public boolean insertSong(int playlistIndex, int position, Song song) {
+        return withPlaylist(playlistIndex, () -> {
+            if (!super.insertSong(playlistIndex, position, song)) {
+                return false;
+            }
+            snapshots.set(playlistIndex, snapshots.get(playlistIndex).insert(position, song));
+            return true;
+        });
+    }
+
+    @Override
+    public boolean removeSong(int playlistIndex, Song song) {
+        return withPlaylist(playlistIndex, () -> {
+            int position = removeSongAt(playlistIndex, song);
+            if (position == 0) {
+                return false;
+            }
+            PersistentPlaylist snapshot = snapshots.get(playlistIndex);
+            if (position < 0) {
+                // not indexed, put into getPlaylists() directly; the first equal song went
+                position = snapshot.positionOf(song);
+            }
+            snapshots.set(playlistIndex, snapshot.remove(position));
+            return true;
+        });
+    }
+
+    @Override
+    public int removeSongs(int playlistIndex, Collection<Song> songs) {
+        return withPlaylist(playlistIndex, () -> {
+            int removed = super.removeSongs(playlistIndex, songs);
+            if (removed > 0) {
+                retake(playlistIndex);
+            }
+            return removed;
+        });
+    }
+
+    @Override
+    public void reversePlaylist(int playlistIndex) {
+        withPlaylist(playlistIndex, () -> {
+            super.reversePlaylist(playlistIndex);
+            retake(playlistIndex);
+            return null;
+        });
+    }
+
+    @Override
+    public void shufflePlaylist(int playlistIndex) {
+        withPlaylist(playlistIndex, () -> {
+            synchronized (SHUFFLE_LOCK) {
+                super.shufflePlaylist(playlistIndex);
+            }
+            retake(playlistIndex);
+            return null;
+        });
+    }
+
+    @Override
+    public void sortPlaylist(int playlistIndex) {
+        withPlaylist(playlistIndex, () -> {
+            super.sortPlaylist(playlistIndex);
+            retake(playlistIndex);
+            return null;
+        });
+    }
+
+    /* Methods that only read */
+
+    @Override
+    public void printPlaylist(int playlistIndex) {
+        print(playlistIndex, snapshots.get(playlistIndex));
+    }
+
+    @Override
+    public void printLibrary() {
+        AtomicReferenceArray<PersistentPlaylist> library = snapshots;
+        if (library.length() == 0) {
+            StdOut.println("\nYour library is empty!");
+        } else {
+            for (int i = 0; i < library.length(); i++) {
+                print(i, library.get(i));
+            }
+        }
+    }
+
+    @Override
+    public List<LibraryIndex.Hit> findByArtist(String artist, int limit) {
+        return readLibrary(() -> super.findByArtist(artist, limit));
+    }
+
+    @Override
+    public List<LibraryIndex.Hit> findByYear(int fromYear, int toYear, int minPopularity, int maxPopularity, int limit) {
+        return readLibrary(() -> super.findByYear(fromYear, toYear, minPopularity, maxPopularity, limit));
+    }
+
+    @Override
+    public List<LibraryIndex.Hit> findMostPopular(int fromYear, int toYear, int k) {
+        return readLibrary(() -> super.findMostPopular(fromYear, toYear, k));
+    }
+
+    @Override
+    public List<LibraryIndex.Hit> searchSongs(String query, int k) {
+        return readLibrary(() -> super.searchSongs(query, k));
+    }
+
+    @Override
+    public void playPlaylist(int playlistIndex, int repeats) {
+        new PlaylistPlayer().play(getSnapshot(playlistIndex).toPlaylist(), repeats);
+    }
+
+    @Override
+    public double[][] decodePlaylist(int playlistIndex) {
+        return new PlaylistDecoder().decodeAll(getSnapshot(playlistIndex).toPlaylist());
+    }
+
+    @Override
+    public void saveSnapshot(String filename) {
+        AtomicReferenceArray<PersistentPlaylist> library = snapshots;
+        ArrayList<Playlist> playlists = new ArrayList<>(library.length());
+        for (int i = 0; i < library.length(); i++) {
+            playlists.add(library.get(i).toPlaylist());
+        }
+        PlaylistSnapshot.save(playlists, filename);
+    }
+
+    @Override
+    public void exportPlaylist(int playlistIndex, String filename) {
+        withPlaylist(playlistIndex, () -> {
+            synchronized (exportLock) {
+                super.exportPlaylist(playlistIndex, filename);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public int exportPlaylists(String[] filenames) {
+        // exportIfChanged takes each lock again, which it already holds
+        int[] indexes = IntStream.range(0, filenames.length).toArray();
+        return withPlaylists(indexes, () -> super.exportPlaylists(filenames));
+    }
+
+    @Override
+    boolean exportIfChanged(int playlistIndex, String filename) {
+        return withPlaylist(playlistIndex, () -> {
+            synchronized (exportLock) {
+                return super.exportIfChanged(playlistIndex, filename);
+            }
+        });
+    }
+
+    /**
+     * Returns the songs of a playlist as they were after the last change
+     * made to it. The snapshot never changes and may be read without locking.
+     *
+     * @param playlistIndex the index of the playlist
+     * @return the songs of the playlist
+     * @throws IndexOutOfBoundsException if there is no playlist at playlistIndex
+     */
+    public PersistentPlaylist getSnapshot(int playlistIndex) {
+        AtomicReferenceArray<PersistentPlaylist> library = snapshots;
+        if (playlistIndex < 0 || playlistIndex >= library.length()) {
+            throw new IndexOutOfBoundsException("no playlist at index " + playlistIndex);
+        }
+        return library.get(playlistIndex);
+    }
+
+    // prints a snapshot the way PlaylistLibrary.printPlaylist prints a playlist
+    private static void print(int playlistIndex, PersistentPlaylist snapshot) {
+        StdOut.printf("%nPlaylist at index %d (%d song(s)):%n", playlistIndex, snapshot.size());
+        if (snapshot.size() == 0) {
+            StdOut.println("EMPTY");
+            return;
+        }
+        int position = 1;
+        for (Song song : snapshot) {
+            StdOut.print(song.toString() + (position++ < snapshot.size() ? " -> " : " - POINTS TO FRONT"));
+        }
+        StdOut.println();
+    }
+
+    /*
+     * Runs op holding the library lock for reading and the lock of the
+     * playlist at playlistIndex, if there is one. An invalid index is left
+     * to op to report.
+     */
+    private <T> T withPlaylist(int playlistIndex, Supplier<T> op) {
+        return withPlaylists(new int[] {playlistIndex}, op);
+    }
+
+    // like withPlaylist, for the playlists at increasing indexes
+    private <T> T withPlaylists(int[] indexes, Supplier<T> op) {
+        List<Lock> locks = lockPlaylists(indexes);
+        try {
+            return op.get();
+        }
+        finally {
+            unlock(locks);
+            libraryLock.readLock().unlock();
+            checkpointIfPending();
+        }
+    }
+
+    /*
+     * Takes the library lock for reading, then the locks of the playlists at
+     * indexes, which are increasing, and returns the playlist locks. Indexes
+     * without a playlist are skipped. A merge waits for the library lock
+     * holding the locks of its playlists, so a playlist lock that is taken
+     * is waited for without any other lock, and then everything starts over.
+     */
+    private List<Lock> lockPlaylists(int[] indexes) {
+        while (true) {
+            libraryLock.readLock().lock();
+            ArrayList<Lock> locked = new ArrayList<>(indexes.length);
+            Lock busy = null;
+            for (int index : indexes) {
+                Playlist playlist = playlistAt(index);
+                if (playlist == null) {
+                    continue;
+                }
+                Lock lock = lockOf(playlist).writeLock();
+                if (!lock.tryLock()) {
+                    busy = lock;
+                    break;
+                }
+                locked.add(lock);
+            }
+            if (busy == null) {
+                return locked;
+            }
+            unlock(locked);
+            libraryLock.readLock().unlock();
+            busy.lock();
+            busy.unlock();
+        }
+    }
+
+    /*
+     * Runs op holding the library lock for writing and the lock of the
+     * playlist at playlistIndex, for the methods that remove or replace that
+     * playlist. If a merge holds the playlist lock, every lock is let go
+     * until the merge is done.
+     */
+    private <T> T writePlaylist(int playlistIndex, Supplier<T> op) {
+        while (true) {
+            Lock busy;
+            libraryLock.writeLock().lock();
+            try {
+                Playlist playlist = playlistAt(playlistIndex);
+                Lock lock = playlist == null ? null : lockOf(playlist).writeLock();
+                if (lock == null || lock.tryLock()) {
+                    try {
+                        return op.get();
+                    }
+                    finally {
+                        if (lock != null) lock.unlock();
+                    }
+                }
+                busy = lock;
+            }
+            finally {
+                libraryLock.writeLock().unlock();
+            }
+            busy.lock();
+            busy.unlock();
+        }
+    }
+
+    /*
+     * Runs a merge in two steps. mergeSongs moves the songs into the
+     * playlist at the lowest index holding the library lock for reading and
+     * the locks of the merged playlists; writers of other playlists go on
+     * meanwhile. The playlist locks are kept while the emptied playlists are
+     * removed holding the library lock for writing, so they are not changed
+     * or moved in between, only shifted by the removal of other playlists.
+     * The log has the songs merged and the playlists removed as two records,
+     * so it matches the library at any point.
+     */
+    private void merge(int[] playlistIndexes, Consumer<int[]> mergeSongs) {
+        int[] indexes = Arrays.stream(playlistIndexes).distinct().sorted().toArray();
+        if (indexes.length < 2) {
+            return;
+        }
+        List<Lock> locks = lockPlaylists(indexes);
+        try {
+            List<Playlist> playlists;
+            PersistentPlaylist merged;
+            try {
+                logPlaylists();
+                playlists = playlistsAt(indexes);
+                mergeSongs.accept(indexes);
+                logMergeSongs(indexes);
+                merged = PersistentPlaylist.of(playlists.get(0));
+            }
+            finally {
+                libraryLock.readLock().unlock();
+            }
+
+            Set<Playlist> emptied = Collections.newSetFromMap(new IdentityHashMap<>());
+            emptied.addAll(playlists.subList(1, playlists.size()));
+            writeLibrary(() -> {
+                ArrayList<Playlist> songLibrary = getPlaylists();
+                for (int i = songLibrary == null ? -1 : songLibrary.size() - 1; i >= 0; i--) {
+                    if (emptied.contains(songLibrary.get(i))) {
+                        super.removePlaylist(i);
+                    }
+                }
+                return republish(null, Collections.singletonMap(playlists.get(0), merged));
+            });
+        }
+        finally {
+            unlock(locks);
+            checkpointIfPending();
+        }
+    }
+
+    // takes the checkpoint a writer has left for after its locks were released
+    private void checkpointIfPending() {
+        if (checkpointPending && libraryLock.getReadHoldCount() == 0) {
+            writeLibrary(() -> {
+                if (checkpointPending) {
+                    checkpointPending = false;
+                    if (isLogging()) checkpoint();
+                }
+                return null;
+            });
+        }
+    }
+
+    private static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    // publishes a new copy of the playlist at index; its lock must be held
+    private void retake(int index) {
+        snapshots.set(index, PersistentPlaylist.of(playlistAt(index)));
+    }
+
+    /*
+     * Publishes the snapshots of the whole library after a change to which
+     * playlist is at which index, holding the library lock for writing.
+     * Playlists that were already published keep their snapshot unless a
+     * new one has been taken; the others are indexed and copied. The change
+     * is logged, and the library index brought up to date, too.
+     */
+    private <T> T republish(T result, Map<Playlist, PersistentPlaylist> taken) {
+        Map<Playlist, PersistentPlaylist> previous = new IdentityHashMap<>();
+        for (int i = 0; i < published.length; i++) {
+            previous.put(published[i], snapshots.get(i));
+        }
+        previous.putAll(taken);
+
+        ArrayList<Playlist> songLibrary = getPlaylists();
+        int n = songLibrary == null ? 0 : songLibrary.size();
+        Playlist[] playlists = new Playlist[n];
+        AtomicReferenceArray<PersistentPlaylist> library = new AtomicReferenceArray<>(n);
+        for (int i = 0; i < n; i++) {
+            playlists[i] = songLibrary.get(i);
+            if (!(playlists[i] instanceof IndexedPlaylist)) {
+                // same songs, same snapshot
+                PersistentPlaylist snapshot = previous.get(playlists[i]);
+                playlists[i] = index(i);
+                if (snapshot != null) previous.put(playlists[i], snapshot);
+            }
+            PersistentPlaylist snapshot = previous.get(playlists[i]);
+            library.set(i, snapshot != null ? snapshot : PersistentPlaylist.of(playlists[i]));
+        }
+        published = playlists;
+        snapshots = library;
+        logPlaylists();
+        // new playlists are walked now, before their writers can change them
+        syncLibraryIndex();
+        return result;
+    }
+
+    private <T> T republish(T result) {
+        return republish(result, Collections.emptyMap());
+    }
+
+    private void republish() {
+        republish(null);
+    }
+
+    private <T> T readLibrary(Supplier<T> op) {
+        libraryLock.readLock().lock();
+        try {
+            return op.get();
+        }
+        finally {
+            libraryLock.readLock().unlock();
+        }
+    }
+
+    private <T> T writeLibrary(Supplier<T> op) {
+        libraryLock.writeLock().lock();
+        try {
+            return op.get();
+        }
+        finally {
+            libraryLock.writeLock().unlock();
+        }
+    }
+
+    // the playlist at index, or null if there is none; the library lock must be held
+    private Playlist playlistAt(int index) {
+        ArrayList<Playlist> songLibrary = getPlaylists();
+        if (songLibrary == null || index < 0 || index >= songLibrary.size()) {
+            return null;
+        }
+        return songLibrary.get(index);
+    }
+
+    /*
+     * Replaces the playlist at index with an IndexedPlaylist holding its
+     * nodes, which therefore shares its lock; the library lock must be held
+     * for writing.
+     */
+    private IndexedPlaylist index(int index) {
+        Playlist playlist = getPlaylists().get(index);
+        IndexedPlaylist indexed = super.indexPlaylist(index);
+        if (indexed != playlist) {
+            playlistLocks.put(indexed, lockOf(playlist));
+        }
+        return indexed;
+    }
+
+    // the playlists at the given indexes that exist; the library lock must be held
+    private List<Playlist> playlistsAt(int... indexes) {
+        ArrayList<Playlist> playlists = new ArrayList<>();
+        for (int index : indexes) {
+            Playlist playlist = playlistAt(index);
+            if (playlist != null) playlists.add(playlist);
+        }
+        return playlists;
+    }
+
+    private ReentrantReadWriteLock lockOf(Playlist playlist) {
+        return playlistLocks.computeIfAbsent(playlist, p -> new ReentrantReadWriteLock());
+    }
+}
@@ -0,0 +1,179 @@
+package music;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class reads a playlist csv file into a Circular Linked list of
+ * SongNode objects.
+ *
+ * Each line of the input file has the following format:
+ *      songName,artist,year,popularity,link
+ *
+ * The file is memory-mapped and scanned byte by byte for commas and line
+ * breaks. Year and popularity are parsed straight from the mapped bytes, so
+ * the only Strings created per line are the song name, artist and link that
+ * end up in the Song. Empty lines and Windows line endings are skipped.
+ *
+ * A reader keeps a small scratch buffer and is not thread-safe; use one
+ * reader per thread.
+ */
+
+public class CsvPlaylistReader {
+    // files are mapped in windows of this many bytes so huge files do not need one mapping
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private static final int FIELDS = 5;  // songName,artist,year,popularity,link
+
+    private byte[] scratch = new byte[256];  // bytes of the text field being decoded
+
+    /**
+     * Reads the playlist stored in filename.
+     *
+     * @param filename the playlist information input file
+     * @return a Playlist object, which contains a reference to the LAST song
+     * in the circular linked list and the size of the playlist
+     * @throws NumberFormatException if a year or popularity is not an integer
+     * @throws IllegalArgumentException if a line has fewer than five fields
+     * or the file cannot be read
+     */
+    public Playlist read(String filename) {
+        Playlist playlist = new Playlist();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+
+            while (position < fileSize) {
+                long length = Math.min(WINDOW_SIZE, fileSize - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean lastWindow = position + length == fileSize;
+
+                int consumed = readLines(buffer, (int) length, lastWindow, playlist);
+                if (consumed == 0) {
+                    throw new IllegalArgumentException("line longer than " + WINDOW_SIZE + " bytes in '" + filename + "'");
+                }
+                position += consumed;
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not read '" + filename + "'", e);
+        }
+
+        return playlist;
+    }
+
+    /*
+     * Appends every complete line of the buffer to the playlist and returns
+     * the number of bytes consumed. An unterminated line at the end is left
+     * for the next window unless this is the last window of the file.
+     */
+    private int readLines(MappedByteBuffer buffer, int length, boolean lastWindow, Playlist playlist) {
+        int[] commas = new int[FIELDS - 1];
+        int lineStart = 0;
+
+        while (lineStart < length) {
+            // find the commas and the end of the line
+            int found = 0;
+            int i = lineStart;
+            byte b = 0;
+            while (i < length && (b = buffer.get(i)) != '\n') {
+                if (b == ',' && found < commas.length) {
+                    commas[found++] = i;
+                }
+                i++;
+            }
+            if (i == length && !lastWindow) {
+                break; // partial line, read it again in the next window
+            }
+            int next = i + 1;
+
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            if (lineEnd > lineStart) {
+                if (found < commas.length) {
+                    throw new IllegalArgumentException("expected songName,artist,year,popularity,link but got '"
+                            + decode(buffer, lineStart, lineEnd) + "'");
+                }
+
+                // the link ends at the next comma, if there is one
+                int linkEnd = commas[3] + 1;
+                while (linkEnd < lineEnd && buffer.get(linkEnd) != ',') {
+                    linkEnd++;
+                }
+
+                String songName = decode(buffer, lineStart, commas[0]);
+                String artist = decode(buffer, commas[0] + 1, commas[1]);
+                int year = parseInt(buffer, commas[1] + 1, commas[2]);
+                int popularity = parseInt(buffer, commas[2] + 1, commas[3]);
+                String link = decode(buffer, commas[3] + 1, linkEnd);
+
+                append(playlist, new SongNode(new Song(songName, artist, year, popularity, link), null));
+            }
+
+            lineStart = next;
+        }
+
+        return Math.min(lineStart, length);
+    }
+
+    // inserts node at the END of the circular linked list
+    private static void append(Playlist playlist, SongNode node) {
+        SongNode last = playlist.getLast();
+        if (last == null) {
+            node.setNext(node);
+        } else {
+            node.setNext(last.getNext());
+            last.setNext(node);
+        }
+        playlist.setLast(node);
+        playlist.setSize(playlist.getSize() + 1);
+    }
+
+    // decodes the UTF-8 bytes in [from, to) of the buffer
+    private String decode(MappedByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+        }
+        buffer.get(from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // parses the decimal integer in [from, to) of the buffer, like Integer.parseInt
+    private int parseInt(MappedByteBuffer buffer, int from, int to) {
+        boolean negative = false;
+        int i = from;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        if (i == to) {
+            throw new NumberFormatException("For input string: \"" + decode(buffer, from, to) + "\"");
+        }
+
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + decode(buffer, from, to) + "\"");
+            }
+            value = 10 * value + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("For input string: \"" + decode(buffer, from, to) + "\"");
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + decode(buffer, from, to) + "\"");
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,244 @@
+package music;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * This class writes a playlist back to the csv format CsvPlaylistReader
+ * reads, one line per song from the first song of the circular linked list:
+ *      songName,artist,year,popularity,link
+ *
+ * The ring is walked once and every field is encoded as UTF-8 straight into
+ * a reusable buffer, which is written to a FileChannel whenever it fills up;
+ * no String is built per line. The link is written as the file name the
+ * song was read with, without the directory getLink() adds. Reading the file
+ * with createPlaylist gives back the same songs in the same order. Null
+ * Strings are written as empty fields and are read back as empty Strings.
+ *
+ * The file is written next to its target, forced to the disk and then
+ * renamed over it, so a failed export or a crash leaves either the old or
+ * the new file.
+ *
+ * The writer remembers getModCount() of every playlist it has written, and
+ * the sum of Song.edits() over its songs, so writeIfChanged() skips the
+ * playlists whose ring and songs have not changed since. Editing a Song in
+ * place through its setters does not change the playlist; only the
+ * playlists holding that Song are written again. Checking a playlist takes
+ * one pass over its songs, without encoding or writing anything.
+ * A writer is not thread-safe; use one writer per thread.
+ */
+
+public class CsvPlaylistWriter {
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    // lines are encoded into bytes, and written through the buffer that wraps it
+    private final byte[]     bytes  = new byte[BUFFER_BYTES];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int              position;  // bytes encoded and not written yet
+
+    // the last export of each playlist; playlists that are gone drop out with their keys
+    private final Map<Playlist, Export> exported = new WeakHashMap<>();
+
+    /**
+     * Writes the playlist to filename, replacing the file if it exists.
+     *
+     * @param playlist the playlist to write
+     * @param filename the csv file
+     * @throws IllegalArgumentException if unable to save {@code filename},
+     * or if a song name or artist contains a comma or a line break, or a
+     * link contains a comma, a line break or ends with a carriage return,
+     * which createPlaylist would read differently
+     */
+    public void write(Playlist playlist, String filename) {
+        Path path = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        int modCount = playlist.getModCount();
+        long songEdits = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                position = 0;
+                SongNode ptr = playlist.getLast();
+                for (int i = 0; i < playlist.getSize(); i++) {
+                    ptr = ptr.getNext();
+                    // read before the fields, so an edit racing with the write is seen next time
+                    songEdits += ptr.getSong().edits();
+                    putSong(ptr.getSong(), channel);
+                }
+                flush(channel);
+                channel.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            deleteQuietly(temp);
+            throw new IllegalArgumentException("unable to save playlist '" + filename + "'", e);
+        }
+        catch (RuntimeException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+        exported.put(playlist, new Export(filename, modCount, songEdits));
+    }
+
+    /**
+     * Writes the playlist to filename unless this writer has already
+     * written it there and neither it nor any of its Songs has been changed
+     * since.
+     *
+     * @param playlist the playlist to write
+     * @param filename the csv file
+     * @return true if the file has been written
+     * @throws IllegalArgumentException like write()
+     */
+    public boolean writeIfChanged(Playlist playlist, String filename) {
+        Export last = exported.get(playlist);
+        if (last != null && last.modCount == playlist.getModCount() && last.songEdits == songEdits(playlist)
+                && last.filename.equals(filename)) {
+            return false;
+        }
+        write(playlist, filename);
+        return true;
+    }
+
+    // encodes one line
+    private void putSong(Song song, FileChannel channel) throws IOException {
+        putText(song.getSongName(), song, channel);
+        put((byte) ',', channel);
+        putText(song.getArtist(), song, channel);
+        put((byte) ',', channel);
+        putInt(song.getYear(), channel);
+        put((byte) ',', channel);
+        putInt(song.getPopularity(), channel);
+        put((byte) ',', channel);
+        String link = song.getFileName();
+        putText(link, song, channel);
+        if (link != null && link.endsWith("\r")) {
+            throw unwritable(song);
+        }
+        put((byte) '\n', channel);
+    }
+
+    /*
+     * Encodes s as UTF-8, like String.getBytes: an unpaired surrogate
+     * becomes '?'. A comma or a line break would end the field early when
+     * the file is read, in the link as well as in the other fields.
+     */
+    private void putText(String s, Song song, FileChannel channel) throws IOException {
+        if (s == null) {
+            return;
+        }
+        byte[] bytes = this.bytes;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (position > BUFFER_BYTES - 4) {
+                flush(channel);
+            }
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == ',' || c == '\n') {
+                    throw unwritable(song);
+                }
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | c >> 6);
+                bytes[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | cp >> 18);
+                bytes[position++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                bytes[position++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                bytes[position++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                bytes[position++] = (byte) '?';
+            } else {
+                bytes[position++] = (byte) (0xE0 | c >> 12);
+                bytes[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    // encodes the decimal digits of value, like Integer.toString
+    private void putInt(int value, FileChannel channel) throws IOException {
+        if (position > BUFFER_BYTES - 11) {
+            flush(channel);
+        }
+        long v = value;
+        if (v < 0) {
+            bytes[position++] = '-';
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            bytes[position++] = (byte) ('0' + v / divisor % 10);
+        }
+    }
+
+    private void put(byte b, FileChannel channel) throws IOException {
+        if (position == BUFFER_BYTES) {
+            flush(channel);
+        }
+        bytes[position++] = b;
+    }
+
+    // writes the encoded bytes at the end of the file
+    private void flush(FileChannel channel) throws IOException {
+        buffer.clear().limit(position);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        position = 0;
+    }
+
+    private static IllegalArgumentException unwritable(Song song) {
+        return new IllegalArgumentException("song " + song + " can not be written to a csv playlist");
+    }
+
+    // the sum of edits() over the songs of playlist, which only grows while its ring is the same
+    private static long songEdits(Playlist playlist) {
+        long edits = 0;
+        SongNode ptr = playlist.getLast();
+        for (int i = 0; i < playlist.getSize(); i++) {
+            ptr = ptr.getNext();
+            edits += ptr.getSong().edits();
+        }
+        return edits;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            // already reporting the first failure
+        }
+    }
+
+    /*
+     * Where a playlist was last written, and its getModCount() and the sum
+     * of Song.edits() over its songs at the time.
+     */
+    private static final class Export {
+        private final String filename;
+        private final int    modCount;
+        private final long   songEdits;
+
+        Export(String filename, int modCount, long songEdits) {
+            this.filename = filename;
+            this.modCount = modCount;
+            this.songEdits = songEdits;
+        }
+    }
+}
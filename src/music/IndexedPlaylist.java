@@ -0,0 +1,402 @@
+package music;
+
+import java.util.IdentityHashMap;
+import java.util.SplittableRandom;
+
+/**
+ * This class represents a playlist that supports positional access in
+ * logarithmic time.
+ *
+ * The songs still form a Circular Linked list of SongNode objects, so
+ * getLast() and getSize() behave exactly like in Playlist. Alongside the
+ * ring, an implicit treap (a randomized binary search tree ordered by
+ * position) holds every SongNode, which makes insert, remove and
+ * get-by-position O(log n) expected instead of a walk along the ring. Every
+ * tree node knows its parent, and the tree node of every SongNode is kept
+ * in a map, so the position of a SongNode is found in O(log n) as well.
+ *
+ * PlaylistLibrary changes an IndexedPlaylist through the tree: insertSong,
+ * removeSong and removeSongs insert and remove single nodes, and
+ * reversePlaylist flips the whole tree in O(1) with a flag that is pushed
+ * down lazily. Methods that reorder every song (shufflePlaylist,
+ * sortPlaylist, mergePlaylists) rebuild the tree in the same O(n) pass,
+ * reusing its nodes. Only code outside the library that rewires the ring
+ * and then calls setLast() or setSize() marks the tree as stale, to be
+ * rebuilt from the ring on the next positional operation.
+ */
+
+public class IndexedPlaylist extends Playlist {
+    private TreeNode root;   // root of the implicit treap, null if the playlist is empty
+    private boolean  stale;  // true if the ring changed behind the tree's back
+
+    // the tree node of every SongNode in the tree
+    private IdentityHashMap<SongNode, TreeNode> treeNodes = new IdentityHashMap<>();
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    /*
+     * Constructor, indexes the circular linked list ending at last
+     */
+    public IndexedPlaylist(SongNode last, int size) {
+        super(last, size);
+        this.stale = true;
+    }
+
+    /*
+     * Default constructor initializes the size to 0
+     */
+    public IndexedPlaylist() {
+        this(null, 0);
+    }
+
+    /*
+     * Indexes the songs of an existing playlist; the SongNodes are shared
+     */
+    public IndexedPlaylist(Playlist playlist) {
+        this(playlist.getLast(), playlist.getSize());
+    }
+
+    /**
+     * Returns the SongNode at the given position, the first song being at
+     * position 1.
+     *
+     * @param position the position of the song, between 1 and getSize()
+     * @return the SongNode at position, or null if position is out of range
+     */
+    public SongNode getNode(int position) {
+        if (position < 1 || position > getSize()) {
+            return null;
+        }
+        ensureIndexed();
+        return select(position).node;
+    }
+
+    /**
+     * Returns the Song at the given position, the first song being at
+     * position 1.
+     *
+     * @param position the position of the song, between 1 and getSize()
+     * @return the Song at position, or null if position is out of range
+     */
+    public Song get(int position) {
+        SongNode node = getNode(position);
+        return node == null ? null : node.getSong();
+    }
+
+    /**
+     * Returns the position of a SongNode of this playlist, the first song
+     * being at position 1.
+     *
+     * @param node a SongNode of the ring
+     * @return the position of node, or 0 if it is not in this playlist
+     */
+    public int positionOf(SongNode node) {
+        ensureIndexed();
+        TreeNode t = treeNodes.get(node);
+        if (t == null) {
+            return 0;
+        }
+        pushDownTo(t);
+        int position = count(t.left) + 1;
+        for (TreeNode p = t.parent; p != null; t = p, p = p.parent) {
+            if (p.right == t) {
+                position += count(p.left) + 1;
+            }
+        }
+        return position;
+    }
+
+    /*
+     * Inserts a song so that it ends up at the given position, the first
+     * song being at position 1. Only PlaylistLibrary.insertSong calls this,
+     * so the library index and the mutation log see every insert.
+     */
+    boolean insert(int position, Song song) {
+        int size = getSize();
+        if (position < 1 || position > size + 1) {
+            return false;
+        }
+        ensureIndexed();
+
+        SongNode newNode = new SongNode(song, null);
+
+        // Splice the node into the ring after its predecessor
+        SongNode prev;
+        if (size == 0) {
+            prev = newNode;
+            newNode.setNext(newNode);
+            super.setLast(newNode);
+        } else {
+            prev = (position == 1) ? getLast() : select(position - 1).node;
+            newNode.setNext(prev.getNext());
+            prev.setNext(newNode);
+            if (position == size + 1) {
+                super.setLast(newNode);
+            }
+        }
+
+        if (getSongIndex() != null) {
+            getSongIndex().added(prev, newNode);
+        }
+
+        // Add the node to the tree at the same position
+        TreeNode t = new TreeNode(newNode, random.nextInt());
+        treeNodes.put(newNode, t);
+        TreeNode[] parts = split(root, position - 1);
+        setRoot(merge(merge(parts[0], t), parts[1]));
+
+        super.setSize(size + 1);
+        return true;
+    }
+
+    /*
+     * Removes the song after prev from the ring and the tree, keeping last,
+     * size and the song index up to date. Only PlaylistLibrary calls this,
+     * so the library index and the mutation log see every removal.
+     */
+    SongNode removeAfter(SongNode prev) {
+        SongNode removed = prev.getNext();
+        int position = positionOf(removed);
+
+        // Take the node out of the tree
+        TreeNode[] left = split(root, position - 1);
+        TreeNode[] right = split(left[1], 1);
+        setRoot(merge(left[0], right[1]));
+        treeNodes.remove(removed);
+
+        // Unlink it from the ring
+        if (removed == prev) {
+            super.setLast(null);
+            if (getSongIndex() != null) {
+                getSongIndex().clear();
+            }
+        } else {
+            prev.setNext(removed.getNext());
+            if (removed == getLast()) {
+                super.setLast(prev);
+            }
+            if (getSongIndex() != null) {
+                getSongIndex().removed(prev, removed);
+            }
+        }
+
+        super.setSize(getSize() - 1);
+        return removed;
+    }
+
+    /*
+     * Reverses the ring, like PlaylistLibrary.reversePlaylist, and the tree
+     * with it in O(1).
+     */
+    void reverse() {
+        SongNode last = getLast();
+        if (last == null) {
+            return;
+        }
+        SongNode first = last.getNext();
+        SongNode previous = last;
+        SongNode current = first;
+        do {
+            SongNode next = current.getNext();
+            current.setNext(previous);
+            previous = current;
+            current = next;
+        } while (current != first);
+        super.setLast(first);
+        if (root != null) {
+            root.flipped ^= true;
+        }
+    }
+
+    /*
+     * Rebuilds the tree from the ring after PlaylistLibrary has reordered
+     * it, in O(n). The nodes of songs that are still in the ring are reused.
+     */
+    void reindex() {
+        int size = getSize();
+        IdentityHashMap<SongNode, TreeNode> old = treeNodes;
+        TreeNode[] nodes = new TreeNode[size];
+        treeNodes = new IdentityHashMap<>(size);
+        SongNode ptr = (getLast() == null) ? null : getLast().getNext();
+        for (int i = 0; i < size; i++) {
+            TreeNode t = old.get(ptr);
+            if (t == null) {
+                t = new TreeNode(ptr, random.nextInt());
+            }
+            nodes[i] = t;
+            treeNodes.put(ptr, t);
+            ptr = ptr.getNext();
+        }
+        setRoot(build(nodes, 0, size - 1));
+        stale = false;
+    }
+
+    /*
+     * Changing the ring from outside invalidates the tree
+     */
+    @Override
+    public void setLast(SongNode last) {
+        super.setLast(last);
+        stale = true;
+    }
+
+    @Override
+    public void setSize(int size) {
+        super.setSize(size);
+        stale = true;
+    }
+
+    /*
+     * Rebuilds the tree from the ring if it is out of date. The tree is built
+     * perfectly balanced and random priorities are then arranged into heap
+     * order, which takes O(n) overall.
+     */
+    private void ensureIndexed() {
+        if (stale) {
+            reindex();
+        }
+    }
+
+    private static TreeNode build(TreeNode[] nodes, int lo, int hi) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        TreeNode t = nodes[mid];
+        t.flipped = false;
+        t.left = build(nodes, lo, mid - 1);
+        t.right = build(nodes, mid + 1, hi);
+        update(t);
+        siftDown(t);
+        return t;
+    }
+
+    // swaps priorities down the subtree until t satisfies the heap order again
+    private static void siftDown(TreeNode t) {
+        while (true) {
+            TreeNode max = t;
+            if (t.left != null && t.left.priority > max.priority) max = t.left;
+            if (t.right != null && t.right.priority > max.priority) max = t.right;
+            if (max == t) {
+                return;
+            }
+            int temp = t.priority;
+            t.priority = max.priority;
+            max.priority = temp;
+            t = max;
+        }
+    }
+
+    // returns the tree node at the given 1-based position
+    private TreeNode select(int position) {
+        TreeNode t = root;
+        while (true) {
+            push(t);
+            int leftCount = count(t.left);
+            if (position <= leftCount) {
+                t = t.left;
+            } else if (position == leftCount + 1) {
+                return t;
+            } else {
+                position -= leftCount + 1;
+                t = t.right;
+            }
+        }
+    }
+
+    // splits t into its first k nodes and the rest
+    private static TreeNode[] split(TreeNode t, int k) {
+        if (t == null) {
+            return new TreeNode[] {null, null};
+        }
+        push(t);
+        if (count(t.left) >= k) {
+            TreeNode[] parts = split(t.left, k);
+            t.left = parts[1];
+            update(t);
+            parts[1] = t;
+            return parts;
+        } else {
+            TreeNode[] parts = split(t.right, k - count(t.left) - 1);
+            t.right = parts[0];
+            update(t);
+            parts[0] = t;
+            return parts;
+        }
+    }
+
+    // concatenates two trees, every node of a comes before every node of b
+    private static TreeNode merge(TreeNode a, TreeNode b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            push(b);
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private void setRoot(TreeNode t) {
+        root = t;
+        if (t != null) {
+            t.parent = null;
+        }
+    }
+
+    // recomputes the count of t and points its children back at it
+    private static void update(TreeNode t) {
+        t.count = 1 + count(t.left) + count(t.right);
+        if (t.left != null) t.left.parent = t;
+        if (t.right != null) t.right.parent = t;
+    }
+
+    // applies a pending reversal of the subtree of t to its children
+    private static void push(TreeNode t) {
+        if (t.flipped) {
+            TreeNode left = t.left;
+            t.left = t.right;
+            t.right = left;
+            if (t.left != null) t.left.flipped ^= true;
+            if (t.right != null) t.right.flipped ^= true;
+            t.flipped = false;
+        }
+    }
+
+    // pushes every pending reversal on the path from the root down to t
+    private static void pushDownTo(TreeNode t) {
+        if (t.parent != null) {
+            pushDownTo(t.parent);
+        }
+        push(t);
+    }
+
+    private static int count(TreeNode t) {
+        return t == null ? 0 : t.count;
+    }
+
+    /*
+     * A node of the implicit treap. Its position is the number of nodes
+     * before it in an in-order walk, so no keys are stored. A flipped
+     * subtree is to be read mirrored; see push().
+     */
+    private static class TreeNode {
+        private final SongNode node;
+        private int            priority;
+        private int            count = 1;  // number of nodes in this subtree
+        private boolean        flipped;
+        private TreeNode       left;
+        private TreeNode       right;
+        private TreeNode       parent;
+
+        TreeNode(SongNode node, int priority) {
+            this.node = node;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,854 @@
+package music;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * This class represents secondary indexes over the songs of every playlist
+ * in a PlaylistLibrary: a hash index by artist, a sorted index by year,
+ * then popularity, and a trie of the words in song names and artists for
+ * search(). Queries return the SongNodes found together with the index of
+ * the playlist they are in.
+ *
+ * Every SongNode is indexed once, so a song that occurs in several
+ * playlists, or several times in one, is found once per occurrence.
+ *
+ * Changes to the songs of a playlist are reported through added(),
+ * removed() and merged(). Changes to which playlist is at which index (new,
+ * removed or replaced playlists) need no reporting: before every call the
+ * index checks in O(1) whether the library has changed its list since the
+ * last call, and only then compares the list against the playlists it
+ * knows and indexes or drops the playlists that differ.
+ * The entries of every playlist are linked together, so dropping one never
+ * has to walk its ring, which may have been rewired in the meantime.
+ * Reordering a playlist keeps its SongNodes, so it needs no reporting either.
+ *
+ * Every method is synchronized, so writers of different playlists may share
+ * the index.
+ */
+
+public class LibraryIndex {
+
+    /**
+     * A song found by a query: the SongNode holding it and the index of
+     * the playlist that contains that node.
+     */
+    public static final class Hit {
+        private final int      playlistIndex;
+        private final SongNode node;
+
+        Hit(int playlistIndex, SongNode node) {
+            this.playlistIndex = playlistIndex;
+            this.node = node;
+        }
+
+        public int getPlaylistIndex() { return playlistIndex; }
+        public SongNode getNode() { return node; }
+
+        @Override
+        public String toString() {
+            return playlistIndex + ": " + node.getSong();
+        }
+    }
+
+    private final PlaylistLibrary library;
+
+    private final IdentityHashMap<SongNode, Entry> entries = new IdentityHashMap<>();
+    private final HashMap<String, Bucket> byArtist = new HashMap<>();
+    private final TreeMap<Integer, TreeMap<Integer, Bucket>> byYear = new TreeMap<>();
+    private final TrieNode trie = new TrieNode();
+
+    // the most hits of a search a trie node keeps ready
+    private static final int TOP = 16;
+
+    // a trie node with this few words below it finds its top entries by visiting them all
+    private static final int SMALL_NODE = 64;
+
+    // the playlists indexed so far, in library order, and the list they were taken from
+    private Playlist[] known = new Playlist[0];
+    private final PlaylistLibrary.PlaylistsStamp stamp = new PlaylistLibrary.PlaylistsStamp();
+    private IdentityHashMap<Playlist, Owner> owners = new IdentityHashMap<>();
+
+    /*
+     * Constructor, indexes every song of the library
+     */
+    public LibraryIndex(PlaylistLibrary library) {
+        this.library = library;
+        sync();
+    }
+
+    /**
+     * Returns the occurrences of songs by an artist, in no particular order.
+     *
+     * @param artist the artist, compared with .equals()
+     * @param limit the most hits to return
+     * @return up to limit hits
+     */
+    public synchronized List<Hit> byArtist(String artist, int limit) {
+        sync();
+        ArrayList<Hit> hits = new ArrayList<>();
+        Bucket bucket = byArtist.get(artist);
+        if (bucket != null) {
+            bucket.collect(hits, limit, this);
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the occurrences of songs released between fromYear and toYear
+     * with a popularity between minPopularity and maxPopularity, all bounds
+     * included. Hits come by increasing year, then decreasing popularity.
+     *
+     * @param fromYear the first year
+     * @param toYear the last year
+     * @param minPopularity the lowest popularity
+     * @param maxPopularity the highest popularity
+     * @param limit the most hits to return
+     * @return up to limit hits
+     */
+    public synchronized List<Hit> range(int fromYear, int toYear, int minPopularity, int maxPopularity, int limit) {
+        sync();
+        ArrayList<Hit> hits = new ArrayList<>();
+        if (fromYear > toYear || minPopularity > maxPopularity) {
+            return hits;
+        }
+        for (TreeMap<Integer, Bucket> year : byYear.subMap(fromYear, true, toYear, true).values()) {
+            for (Bucket bucket : year.subMap(minPopularity, true, maxPopularity, true).descendingMap().values()) {
+                if (hits.size() >= limit) {
+                    return hits;
+                }
+                bucket.collect(hits, limit, this);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the k most popular occurrences of songs released between
+     * fromYear and toYear, both included, by decreasing popularity. Songs
+     * with the same popularity come by increasing year.
+     *
+     * The highest popularity of every year is kept in a heap, so this takes
+     * O(y + k log y) for y years in the range, however many songs there are.
+     *
+     * @param fromYear the first year
+     * @param toYear the last year
+     * @param k the most hits to return
+     * @return up to k hits
+     */
+    public synchronized List<Hit> top(int fromYear, int toYear, int k) {
+        sync();
+        ArrayList<Hit> hits = new ArrayList<>();
+        if (fromYear > toYear) {
+            return hits;
+        }
+        PriorityQueue<YearCursor> heap = new PriorityQueue<>();
+        for (Map.Entry<Integer, TreeMap<Integer, Bucket>> year : byYear.subMap(fromYear, true, toYear, true).entrySet()) {
+            YearCursor cursor = new YearCursor(year.getKey(), year.getValue().descendingMap());
+            if (cursor.advance()) heap.add(cursor);
+        }
+        while (hits.size() < k && !heap.isEmpty()) {
+            YearCursor cursor = heap.poll();
+            cursor.bucket.collect(hits, k, this);
+            if (cursor.advance()) heap.add(cursor);
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the k most popular occurrences of songs whose name and artist
+     * contain every word of the query, ignoring case. The last word of the
+     * query only has to be the beginning of a word, so a query can be
+     * completed as it is typed: "hey j" finds "Hey Jude". Words are runs of
+     * letters and digits; anything else separates them.
+     *
+     * The words are kept in a trie. Every node the prefix of a search has
+     * led to remembers the TOP most popular songs with a word below it, and
+     * keeps them up to date as songs are added and removed, so a query of
+     * one word and k up to TOP takes O(length of the prefix + k). A node
+     * whose remembered songs have been removed finds new ones from its
+     * children's. Otherwise the search walks either the songs with the
+     * rarest complete word of the query or those with a word starting with
+     * the prefix, whichever are fewer, by decreasing popularity, and stops
+     * at the k-th match.
+     *
+     * @param query the words to look for
+     * @param k the most hits to return
+     * @return up to k hits by decreasing popularity
+     */
+    public synchronized List<Hit> search(String query, int k) {
+        sync();
+        ArrayList<Hit> hits = new ArrayList<>();
+        List<String> words = words(query);
+        if (words.isEmpty() || k <= 0) {
+            return hits;
+        }
+        String prefix = words.get(words.size() - 1);
+        List<String> complete = words.subList(0, words.size() - 1);
+
+        TrieNode node = trie.find(prefix);
+        if (node == null) {
+            return hits;
+        }
+        Term rarest = null;
+        for (String word : complete) {
+            TrieNode found = trie.find(word);
+            if (found == null || found.term == null) {
+                return hits;
+            }
+            if (rarest == null || found.term.size < rarest.size) rarest = found.term;
+        }
+
+        if (rarest == null && k <= TOP) {
+            node.ensureTop(k);
+            for (int i = 0; i < node.topSize && i < k; i++) {
+                hits.add(hit(node.top[i]));
+            }
+            return hits;
+        }
+
+        // a song with several words starting with prefix is found once per word
+        Set<Entry> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        Predicate<Entry> matches = entry -> entry.matches(complete, prefix) && found.add(entry);
+
+        // go down the popularities of the words below node, or of the rarest word, whichever have fewer songs
+        PriorityQueue<TermCursor> heap = new PriorityQueue<>();
+        if (rarest == null || node.size < rarest.size) {
+            ArrayList<Term> below = new ArrayList<>();
+            node.collectTerms(below);
+            for (Term term : below) {
+                TermCursor cursor = new TermCursor(term);
+                if (cursor.advance()) heap.add(cursor);
+            }
+        } else {
+            TermCursor cursor = new TermCursor(rarest);
+            if (cursor.advance()) heap.add(cursor);
+        }
+        while (hits.size() < k && !heap.isEmpty()) {
+            TermCursor cursor = heap.poll();
+            cursor.bucket.collect(hits, k, this, matches);
+            if (cursor.advance()) heap.add(cursor);
+        }
+        return hits;
+    }
+
+    /**
+     * Records that node has just been linked into playlist.
+     *
+     * @param playlist the playlist holding the node
+     * @param node the new node
+     */
+    public synchronized void added(Playlist playlist, SongNode node) {
+        sync();
+        Owner owner = owners.get(playlist);
+        // a playlist seen for the first time was indexed with the node already in it
+        if (owner != null && !entries.containsKey(node)) {
+            add(node, owner);
+        }
+    }
+
+    /**
+     * Records that node has just been unlinked from its playlist.
+     *
+     * @param node the removed node
+     */
+    public synchronized void removed(SongNode node) {
+        sync();
+        remove(node);
+    }
+
+    /**
+     * Records that the nodes of other playlists have been linked into the
+     * ring of playlist. Call this before the other playlists are removed
+     * from the library, so their songs are not dropped with them.
+     *
+     * @param playlist the playlist now holding the nodes
+     */
+    public synchronized void merged(Playlist playlist) {
+        sync();
+        Owner owner = owners.get(playlist);
+        SongNode ptr = playlist.getLast();
+        for (int i = 0; owner != null && ptr != null && i < playlist.getSize(); i++) {
+            ptr = ptr.getNext();
+            Entry entry = entries.get(ptr);
+            if (entry == null) {
+                add(ptr, owner);
+            } else if (entry.owner != owner) {
+                entry.owner.unlink(entry);
+                owner.link(entry);
+            }
+        }
+    }
+
+    /*
+     * Brings the index up to date with the playlists in the library. Does
+     * nothing in O(1) if the library has not changed its list since the last
+     * call, and in O(number of playlists) if the playlists are the ones
+     * indexed last time. The songs of playlists seen for the first time are
+     * walked, so a library used from many threads calls this while no one
+     * changes them.
+     */
+    synchronized void sync() {
+        if (stamp.isCurrent(library)) {
+            return;
+        }
+        ArrayList<Playlist> playlists = library.getPlaylists();
+        int n = playlists == null ? 0 : playlists.size();
+        if (n == known.length) {
+            int i = 0;
+            while (i < n && playlists.get(i) == known[i]) i++;
+            if (i == n) {
+                stamp.update(library);
+                return;
+            }
+        }
+
+        IdentityHashMap<Playlist, Owner> next = new IdentityHashMap<>();
+        ArrayList<Playlist> fresh = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Playlist playlist = playlists.get(i);
+            Owner owner = owners.remove(playlist);
+            if (owner == null) {
+                owner = new Owner();
+                fresh.add(playlist);
+            }
+            owner.position = i;
+            next.put(playlist, owner);
+        }
+
+        // what is left in owners has been removed from the library
+        if (next.size() == fresh.size()) {
+            entries.clear();
+            byArtist.clear();
+            byYear.clear();
+            trie.clear();
+        } else {
+            for (Owner gone : owners.values()) {
+                while (gone.first != null) {
+                    remove(gone.first.node);
+                }
+            }
+        }
+        owners = next;
+        known = playlists == null ? new Playlist[0] : playlists.toArray(new Playlist[0]);
+        stamp.update(library);
+        for (Playlist playlist : fresh) {
+            Owner owner = next.get(playlist);
+            SongNode ptr = playlist.getLast();
+            for (int i = 0; ptr != null && i < playlist.getSize(); i++) {
+                ptr = ptr.getNext();
+                if (!entries.containsKey(ptr)) add(ptr, owner);
+            }
+        }
+    }
+
+    private void add(SongNode node, Owner owner) {
+        Song song = node.getSong();
+        Entry entry = new Entry(node, song);
+        owner.link(entry);
+        entries.put(node, entry);
+        byArtist.computeIfAbsent(entry.artist, a -> new Bucket(true)).add(entry);
+        byYear.computeIfAbsent(entry.year, y -> new TreeMap<>())
+              .computeIfAbsent(entry.popularity, p -> new Bucket(false)).add(entry);
+
+        LinkedHashSet<String> distinct = new LinkedHashSet<>(words(song.getSongName()));
+        distinct.addAll(words(entry.artist));
+        entry.terms = new Term[distinct.size()];
+        entry.termSlots = new int[distinct.size()];
+        int i = 0;
+        for (String word : distinct) {
+            Term term = trie.add(word, entry);
+            entry.terms[i++] = term;
+            term.buckets.computeIfAbsent(entry.popularity, p -> new Bucket(term)).add(entry);
+            term.size++;
+        }
+    }
+
+    private void remove(SongNode node) {
+        Entry entry = entries.remove(node);
+        if (entry == null) {
+            return;
+        }
+        entry.owner.unlink(entry);
+
+        // by the keys the entry was filed under, the song may have been edited since
+        Bucket artist = byArtist.get(entry.artist);
+        if (artist.remove(entry)) {
+            byArtist.remove(entry.artist);
+        }
+        TreeMap<Integer, Bucket> year = byYear.get(entry.year);
+        if (year.get(entry.popularity).remove(entry)) {
+            year.remove(entry.popularity);
+            if (year.isEmpty()) byYear.remove(entry.year);
+        }
+        for (Term term : entry.terms) {
+            if (term.buckets.get(entry.popularity).remove(entry)) {
+                term.buckets.remove(entry.popularity);
+            }
+            term.size--;
+            trie.remove(term.word, entry);
+        }
+    }
+
+    // the lower case words of s: runs of letters and digits
+    private static List<String> words(String s) {
+        ArrayList<String> words = new ArrayList<>();
+        if (s == null) {
+            return words;
+        }
+        s = s.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean inWord = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(s.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private Hit hit(Entry entry) {
+        return new Hit(entry.owner.position, entry.node);
+    }
+
+    /*
+     * One indexed SongNode. The artist, year and popularity are kept as they
+     * were when the node was indexed, so the entry can be found in its
+     * buckets again even if the Song has been edited since.
+     */
+    private static final class Entry {
+        private final SongNode node;
+        private final String   artist;
+        private final int      year;
+        private final int      popularity;
+        private Owner          owner;
+        private Entry          prev;        // the entries of the same playlist
+        private Entry          next;
+        private int            artistSlot;  // position in its artist bucket
+        private int            yearSlot;    // position in its year and popularity bucket
+        private Term[]         terms;       // the distinct words of the song
+        private int[]          termSlots;   // position in the bucket of each word
+
+        Entry(SongNode node, Song song) {
+            this.node = node;
+            this.artist = song.getArtist();
+            this.year = song.getYear();
+            this.popularity = song.getPopularity();
+        }
+
+        // true if the song has every complete word and a word starting with prefix
+        boolean matches(List<String> complete, String prefix) {
+            for (String word : complete) {
+                if (!hasWord(word, false)) return false;
+            }
+            return hasWord(prefix, true);
+        }
+
+        private boolean hasWord(String word, boolean prefix) {
+            for (Term term : terms) {
+                if (prefix ? term.word.startsWith(word) : term.word.equals(word)) return true;
+            }
+            return false;
+        }
+
+        private int termSlot(Term term) {
+            for (int i = 0; i < terms.length; i++) {
+                if (terms[i] == term) return i;
+            }
+            throw new IllegalStateException("entry is not in the bucket of '" + term.word + "'");
+        }
+    }
+
+    // a word of the dictionary and its buckets by popularity
+    private static final class Term {
+        private final String                   word;
+        private final TreeMap<Integer, Bucket> buckets = new TreeMap<>();
+        private int                            size;  // number of entries of songs containing it
+
+        Term(String word) {
+            this.word = word;
+        }
+
+        // adds the TOP most popular entries with this word, or all of them
+        void collectTop(List<Entry> out) {
+            int count = 0;
+            for (Bucket bucket : buckets.descendingMap().values()) {
+                for (int i = 0; i < bucket.size && count < TOP; i++, count++) out.add(bucket.items[i]);
+                if (count == TOP) return;
+            }
+        }
+    }
+
+    // an indexed playlist: its position in the library and a list of its entries
+    private static final class Owner {
+        private int   position;
+        private Entry first;
+
+        void link(Entry entry) {
+            entry.owner = this;
+            entry.prev = null;
+            entry.next = first;
+            if (first != null) first.prev = entry;
+            first = entry;
+        }
+
+        void unlink(Entry entry) {
+            if (entry.prev != null) entry.prev.next = entry.next;
+            else first = entry.next;
+            if (entry.next != null) entry.next.prev = entry.prev;
+            entry.prev = entry.next = null;
+        }
+    }
+
+    /*
+     * The entries with the same key, in an array. Entries remember their
+     * slot, so removing one moves the last entry into its place in O(1).
+     */
+    private static final class Bucket {
+        private final boolean artist;  // which slot of the entries this bucket uses
+        private final Term    term;    // the word of the bucket, null for artists and years
+        private Entry[]       items = new Entry[2];
+        private int           size;
+
+        Bucket(boolean artist) {
+            this.artist = artist;
+            this.term = null;
+        }
+
+        Bucket(Term term) {
+            this.artist = false;
+            this.term = term;
+        }
+
+        void add(Entry entry) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            setSlot(entry, size);
+            items[size++] = entry;
+        }
+
+        // returns true if the bucket is now empty
+        boolean remove(Entry entry) {
+            int slot = getSlot(entry);
+            Entry moved = items[--size];
+            items[slot] = moved;
+            setSlot(moved, slot);
+            items[size] = null;
+            return size == 0;
+        }
+
+        void collect(List<Hit> hits, int limit, LibraryIndex index) {
+            collect(hits, limit, index, entry -> true);
+        }
+
+        void collect(List<Hit> hits, int limit, LibraryIndex index, Predicate<Entry> filter) {
+            for (int i = 0; i < size && hits.size() < limit; i++) {
+                if (filter.test(items[i])) hits.add(index.hit(items[i]));
+            }
+        }
+
+        private int getSlot(Entry entry) {
+            if (term != null) return entry.termSlots[entry.termSlot(term)];
+            return artist ? entry.artistSlot : entry.yearSlot;
+        }
+
+        private void setSlot(Entry entry, int slot) {
+            if (term != null) entry.termSlots[entry.termSlot(term)] = slot;
+            else if (artist) entry.artistSlot = slot;
+            else entry.yearSlot = slot;
+        }
+    }
+
+    /*
+     * A node of the trie of words, reached by the characters of a prefix.
+     *
+     * A node may remember the most popular distinct entries with a word
+     * below it, in top[0..topSize), by decreasing popularity. If complete is
+     * true they are all the entries below it; otherwise they are the
+     * topSize most popular ones, all at least as popular as any entry not in
+     * top. add() and remove() keep that true without looking below the
+     * node: a new entry joins if it is at least as popular as the last one,
+     * and a removed entry leaves, so the list only shrinks until a search
+     * asks for more than it holds.
+     */
+    private static final class TrieNode {
+        private static final char[]     NO_KEYS     = new char[0];
+        private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+        private char[]     keys     = NO_KEYS;      // sorted
+        private TrieNode[] children = NO_CHILDREN;
+        private Term       term;                    // the word ending here, null if none
+        private int        size;                    // words of entries at and below this node
+        private Entry[]    top;                     // null until a search needs it
+        private int        topSize;
+        private boolean    complete;
+
+        void clear() {
+            keys = NO_KEYS;
+            children = NO_CHILDREN;
+            term = null;
+            size = 0;
+            top = null;
+        }
+
+        // the node of prefix, or null if no word starts with it
+        TrieNode find(String prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                int slot = Arrays.binarySearch(node.keys, prefix.charAt(i));
+                node = slot < 0 ? null : node.children[slot];
+            }
+            return node;
+        }
+
+        // files a word of entry, returns its term
+        Term add(String word, Entry entry) {
+            TrieNode node = this;
+            node.size++;
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                int slot = Arrays.binarySearch(node.keys, c);
+                if (slot < 0) {
+                    slot = -slot - 1;
+                    node.insertChild(slot, c);
+                }
+                node = node.children[slot];
+                node.size++;
+                node.offer(entry);
+            }
+            if (node.term == null) {
+                node.term = new Term(word);
+            }
+            return node.term;
+        }
+
+        // drops a word of entry, and the nodes no word goes through any more
+        void remove(String word, Entry entry) {
+            TrieNode node = this;
+            node.size--;
+            for (int i = 0; i < word.length(); i++) {
+                int slot = Arrays.binarySearch(node.keys, word.charAt(i));
+                TrieNode child = node.children[slot];
+                if (--child.size == 0) {
+                    node.removeChild(slot);
+                    return;
+                }
+                child.drop(entry);
+                node = child;
+            }
+            if (node.term.size == 0) {
+                node.term = null;
+            }
+        }
+
+        private void insertChild(int slot, char c) {
+            int n = keys.length;
+            char[] k = new char[n + 1];
+            TrieNode[] ch = new TrieNode[n + 1];
+            System.arraycopy(keys, 0, k, 0, slot);
+            System.arraycopy(children, 0, ch, 0, slot);
+            System.arraycopy(keys, slot, k, slot + 1, n - slot);
+            System.arraycopy(children, slot, ch, slot + 1, n - slot);
+            k[slot] = c;
+            ch[slot] = new TrieNode();
+            keys = k;
+            children = ch;
+        }
+
+        private void removeChild(int slot) {
+            int n = keys.length;
+            char[] k = n == 1 ? NO_KEYS : new char[n - 1];
+            TrieNode[] ch = n == 1 ? NO_CHILDREN : new TrieNode[n - 1];
+            System.arraycopy(keys, 0, k, 0, slot);
+            System.arraycopy(children, 0, ch, 0, slot);
+            System.arraycopy(keys, slot + 1, k, slot, n - slot - 1);
+            System.arraycopy(children, slot + 1, ch, slot, n - slot - 1);
+            keys = k;
+            children = ch;
+        }
+
+        // a new entry with a word below this node
+        private void offer(Entry entry) {
+            if (top == null || indexOf(entry) >= 0) {
+                return;
+            }
+            if (!complete && (topSize == 0 || entry.popularity < top[topSize - 1].popularity)) {
+                return;  // an entry that is not remembered may be more popular
+            }
+            int i = topSize;
+            if (i == TOP) {
+                // the list is full: the entry pushing out the last one or itself is no longer remembered
+                complete = false;
+                if (entry.popularity <= top[TOP - 1].popularity) {
+                    return;
+                }
+                i--;
+            } else {
+                topSize++;
+            }
+            for (; i > 0 && top[i - 1].popularity < entry.popularity; i--) {
+                top[i] = top[i - 1];
+            }
+            top[i] = entry;
+        }
+
+        // an entry removed from below this node
+        private void drop(Entry entry) {
+            int i = top == null ? -1 : indexOf(entry);
+            if (i < 0) {
+                return;
+            }
+            System.arraycopy(top, i + 1, top, i, topSize - i - 1);
+            top[--topSize] = null;
+        }
+
+        private int indexOf(Entry entry) {
+            for (int i = 0; i < topSize; i++) {
+                if (top[i] == entry) return i;
+            }
+            return -1;
+        }
+
+        // makes top hold the k most popular entries below, or all of them if there are fewer
+        void ensureTop(int k) {
+            if (top != null && (complete || topSize >= k)) {
+                return;
+            }
+            ArrayList<Entry> candidates = new ArrayList<>();
+            if (size <= SMALL_NODE) {
+                collectEntries(candidates);
+            } else {
+                if (term != null) {
+                    term.collectTop(candidates);
+                }
+                for (TrieNode child : children) {
+                    child.ensureTop(TOP);
+                    for (int i = 0; i < child.topSize; i++) {
+                        candidates.add(child.top[i]);
+                    }
+                }
+            }
+            Set<Entry> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            candidates.removeIf(entry -> !seen.add(entry));
+            candidates.sort((a, b) -> Integer.compare(b.popularity, a.popularity));
+            if (top == null) {
+                top = new Entry[TOP];
+            }
+            topSize = Math.min(TOP, candidates.size());
+            for (int i = 0; i < topSize; i++) {
+                top[i] = candidates.get(i);
+            }
+            Arrays.fill(top, topSize, TOP, null);
+            complete = candidates.size() <= TOP && (size <= SMALL_NODE || childrenComplete());
+        }
+
+        private boolean childrenComplete() {
+            if (term != null && term.size > TOP) {
+                return false;
+            }
+            for (TrieNode child : children) {
+                if (!child.complete) return false;
+            }
+            return true;
+        }
+
+        private void collectEntries(List<Entry> out) {
+            if (term != null) {
+                for (Bucket bucket : term.buckets.values()) {
+                    for (int i = 0; i < bucket.size; i++) out.add(bucket.items[i]);
+                }
+            }
+            for (TrieNode child : children) {
+                child.collectEntries(out);
+            }
+        }
+
+        void collectTerms(List<Term> out) {
+            if (term != null) {
+                out.add(term);
+            }
+            for (TrieNode child : children) {
+                child.collectTerms(out);
+            }
+        }
+    }
+
+    /*
+     * The buckets of one word, from the highest popularity down. Cursors
+     * are ordered by decreasing popularity.
+     */
+    private static final class TermCursor implements Comparable<TermCursor> {
+        private final Iterator<Bucket> buckets;
+        private int                    popularity;
+        private Bucket                 bucket;
+
+        TermCursor(Term term) {
+            this.buckets = term.buckets.descendingMap().values().iterator();
+        }
+
+        // moves to the next bucket, returns false if there is none
+        boolean advance() {
+            if (!buckets.hasNext()) {
+                return false;
+            }
+            bucket = buckets.next();
+            popularity = bucket.items[0].popularity;
+            return true;
+        }
+
+        @Override
+        public int compareTo(TermCursor other) {
+            return Integer.compare(other.popularity, popularity);
+        }
+    }
+
+    /*
+     * The buckets of one year, from the highest popularity down. Cursors
+     * are ordered by decreasing popularity, then by increasing year.
+     */
+    private static final class YearCursor implements Comparable<YearCursor> {
+        private final int                                   year;
+        private final Iterator<Map.Entry<Integer, Bucket>> buckets;
+        private int                                         popularity;
+        private Bucket                                      bucket;
+
+        YearCursor(int year, NavigableMap<Integer, Bucket> byPopularity) {
+            this.year = year;
+            this.buckets = byPopularity.entrySet().iterator();
+        }
+
+        // moves to the next bucket, returns false if there is none
+        boolean advance() {
+            if (!buckets.hasNext()) {
+                return false;
+            }
+            Map.Entry<Integer, Bucket> next = buckets.next();
+            popularity = next.getKey();
+            bucket = next.getValue();
+            return true;
+        }
+
+        @Override
+        public int compareTo(YearCursor other) {
+            int byPopularity = Integer.compare(other.popularity, popularity);
+            return byPopularity != 0 ? byPopularity : Integer.compare(year, other.year);
+        }
+    }
+}
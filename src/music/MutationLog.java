@@ -0,0 +1,721 @@
+package music;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * This class is the write-ahead log of a PlaylistLibrary. Every change made
+ * to the songs or playlists of the library is appended to it as a small
+ * binary record, so the changes made since the last snapshot can be replayed
+ * after a restart or a crash.
+ *
+ * Layout of a log:
+ *
+ *      magic "PLOG", version, checksum of the snapshot the log starts from
+ *      records: body length, body, CRC32C of the body
+ *
+ * The magic, version, checksum and CRC are big endian (4, 4, 8 and 4 bytes);
+ * every other integer is a varint of 7 bits per byte, zigzag encoded so
+ * small negative numbers stay short. A body is an operation code followed by
+ * its arguments. Strings are written as their UTF-8 length plus one (0 for
+ * null) and their bytes, and a song as its name, artist, link file name,
+ * year and popularity.
+ *
+ * Records are collected in a buffer and written out in groups. syncEvery
+ * sets how many records may be appended before they are forced to disk:
+ * with 1 a change is on disk when the method that made it returns, and the
+ * threads appending at the same time share a single force (group commit);
+ * with n > 1 up to n - 1 changes may be lost in a crash; with 0 records are
+ * only written when the buffer fills up. A positive syncMillis also forces
+ * the appended records from a background thread every syncMillis
+ * milliseconds.
+ *
+ * Replay stops at the first record that is incomplete or fails its CRC,
+ * which is where a crash interrupted the last write.
+ */
+
+public class MutationLog implements Closeable {
+    private static final int MAGIC        = 0x504C4F47;  // "PLOG"
+    private static final int VERSION      = 2;  // 2 added MERGE_SONGS; logs of version 1 are still read
+    private static final int HEADER_BYTES = 16;
+    private static final int BUFFER_BYTES = 64 * 1024;   // records are written once this many are pending
+
+    // operation codes
+    private static final byte INSERT_SONG     = 1;
+    private static final byte REMOVE_SONG     = 2;
+    private static final byte REMOVE_SONGS    = 3;
+    private static final byte REVERSE         = 4;
+    private static final byte SHUFFLE         = 5;
+    private static final byte SORT            = 6;
+    private static final byte MERGE           = 7;
+    private static final byte ADD_PLAYLIST    = 8;
+    private static final byte REMOVE_PLAYLIST = 9;
+    private static final byte MERGE_SONGS     = 10;  // a merge whose playlists are removed by later records
+
+    private final String                   filename;
+    private final int                      syncEvery;
+    private final ScheduledExecutorService syncer;   // null if syncMillis is 0
+
+    /*
+     * Appenders copy their records into buffer holding lock. One thread at a
+     * time takes the buffer, leaving spare in its place, and writes it
+     * without the lock, so records are appended while others are written.
+     */
+    private final ReentrantLock lock    = new ReentrantLock();
+    private final Condition     flushed = lock.newCondition();
+    private FileChannel channel;
+    private byte[]      buffer = new byte[2 * BUFFER_BYTES];
+    private byte[]      spare  = new byte[2 * BUFFER_BYTES];
+    private int         length;      // bytes of buffer in use
+    private long        appended;    // records appended so far
+    private long        written;     // records written to the channel
+    private long        durable;     // records forced to disk
+    private long        bytes;       // size of the log, pending records included
+    private boolean     flushing;    // a thread is writing
+    private boolean     closed;
+    private IOException failure;     // the write that failed, if any
+
+    /**
+     * Creates (or replaces) a log of the changes made after a snapshot.
+     *
+     * @param filename the name of the log file
+     * @param snapshotChecksum checksum(snapshot) of the snapshot the changes
+     * are made to
+     * @param syncEvery the most records appended before they are forced to
+     * disk, 0 to leave it to syncMillis and the operating system
+     * @param syncMillis the most milliseconds records stay appended before
+     * they are forced to disk, 0 for no limit
+     * @throws IllegalArgumentException if the file cannot be created, or if
+     * syncEvery or syncMillis is negative
+     */
+    public MutationLog(String filename, long snapshotChecksum, int syncEvery, long syncMillis) {
+        if (filename == null) {
+            throw new IllegalArgumentException("filename is null");
+        }
+        if (syncEvery < 0 || syncMillis < 0) {
+            throw new IllegalArgumentException("invalid syncEvery or syncMillis");
+        }
+        this.filename = filename;
+        this.syncEvery = syncEvery;
+        channel = create(snapshotChecksum);
+        bytes = HEADER_BYTES;
+
+        if (syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mutation-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::timedSync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /* Records, appended after the change they describe has been made */
+
+    void insertSong(int playlistIndex, int position, Song song) {
+        append(new Record(INSERT_SONG).putInt(playlistIndex).putInt(position).putSong(song));
+    }
+
+    void removeSong(int playlistIndex, Song song) {
+        append(new Record(REMOVE_SONG).putInt(playlistIndex).putSong(song));
+    }
+
+    void removeSongs(int playlistIndex, Collection<Song> songs) {
+        Record record = new Record(REMOVE_SONGS).putInt(playlistIndex).putInt(songs.size());
+        for (Song song : songs) {
+            record.putSong(song);
+        }
+        append(record);
+    }
+
+    void reversePlaylist(int playlistIndex) {
+        append(new Record(REVERSE).putInt(playlistIndex));
+    }
+
+    void shufflePlaylist(int playlistIndex, boolean legacy) {
+        append(new Record(SHUFFLE).putInt(playlistIndex).putInt(legacy ? 1 : 0));
+    }
+
+    void sortPlaylist(int playlistIndex) {
+        append(new Record(SORT).putInt(playlistIndex));
+    }
+
+    void mergePlaylists(int[] playlistIndexes) {
+        Record record = new Record(MERGE).putInt(playlistIndexes.length);
+        for (int index : playlistIndexes) {
+            record.putInt(index);
+        }
+        append(record);
+    }
+
+    void mergeSongs(int[] playlistIndexes) {
+        Record record = new Record(MERGE_SONGS).putInt(playlistIndexes.length);
+        for (int index : playlistIndexes) {
+            record.putInt(index);
+        }
+        append(record);
+    }
+
+    // the songs are logged, not the file they came from, which may change
+    void addPlaylist(int playlistIndex, Playlist playlist) {
+        Record record = new Record(ADD_PLAYLIST).putInt(playlistIndex).putInt(playlist.getSize());
+        SongNode ptr = playlist.getLast();
+        for (int i = 0; i < playlist.getSize(); i++) {
+            ptr = ptr.getNext();
+            record.putSong(ptr.getSong());
+        }
+        append(record);
+    }
+
+    void removePlaylist(int playlistIndex) {
+        append(new Record(REMOVE_PLAYLIST).putInt(playlistIndex));
+    }
+
+    /**
+     * Forces every record appended so far to disk.
+     *
+     * @throws IllegalArgumentException if the log cannot be written
+     */
+    public void sync() {
+        long upTo;
+        lock.lock();
+        try {
+            upTo = appended;
+        }
+        finally {
+            lock.unlock();
+        }
+        flush(upTo, true);
+    }
+
+    /**
+     * Returns the size of the log in bytes, including records that have
+     * not been written yet.
+     *
+     * @return the number of bytes appended since the log was started
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the log over for a new snapshot, after forcing the records of
+     * the old one to disk. The new, empty log replaces the file in one step.
+     *
+     * @param snapshotChecksum checksum(snapshot) of the new snapshot
+     * @throws IllegalArgumentException if the file cannot be created
+     */
+    void restart(long snapshotChecksum) {
+        sync();
+        lock.lock();
+        try {
+            checkOpen();
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            FileChannel old = channel;
+            channel = create(snapshotChecksum);
+            bytes = HEADER_BYTES;
+            old.close();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save mutation log '" + filename + "'", e);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the remaining records to disk and closes the file. Closing
+     * again has no effect.
+     *
+     * @throws IllegalArgumentException if the log cannot be written
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        sync();
+        lock.lock();
+        try {
+            closed = true;
+            channel.close();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save mutation log '" + filename + "'", e);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the records of a log to a library, in the order they were
+     * appended. Nothing is applied if the log was started from another
+     * snapshot than the one the library has been loaded from: that snapshot
+     * was taken after the log, and holds its changes already.
+     *
+     * @param filename the log file; a missing file holds no records
+     * @param snapshotChecksum checksum(snapshot) of the snapshot the library
+     * has been loaded from
+     * @param library the library to apply the changes to
+     * @return the number of records applied
+     * @throws IllegalArgumentException if the file cannot be read or is not
+     * a mutation log of a supported version
+     */
+    static int replay(String filename, long snapshotChecksum, PlaylistLibrary library) {
+        Path path = Paths.get(filename);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("mutation log '" + filename + "' is larger than 2 GB");
+            }
+            MappedByteBuffer log = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (log.remaining() < HEADER_BYTES || log.getInt() != MAGIC) {
+                throw new IllegalArgumentException("'" + filename + "' is not a mutation log");
+            }
+            int version = log.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("unsupported mutation log version " + version + " in '" + filename + "'");
+            }
+            if (log.getLong() != snapshotChecksum) {
+                return 0;
+            }
+
+            CRC32C crc = new CRC32C();
+            int records = 0;
+            while (log.hasRemaining()) {
+                // a record cut short or left half written by a crash ends the log
+                int length;
+                try {
+                    length = readVarint(log);
+                }
+                catch (BufferUnderflowException | IllegalArgumentException e) {
+                    break;
+                }
+                if (length < 1 || length > log.remaining() - 4) {
+                    break;
+                }
+                ByteBuffer body = log.slice(log.position(), length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != log.getInt(log.position() + length)) {
+                    break;
+                }
+                apply(body, library);
+                log.position(log.position() + length + 4);
+                records++;
+            }
+            return records;
+        }
+        catch (IOException | BufferUnderflowException e) {
+            throw new IllegalArgumentException("could not read mutation log '" + filename + "'", e);
+        }
+    }
+
+    /**
+     * Returns the CRC32C of a whole file, which a log records to name the
+     * snapshot it starts from.
+     *
+     * @param filename the file
+     * @return the checksum of its bytes
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    static long checksum(String filename) {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            CRC32C crc = new CRC32C();
+            long size = in.size();
+            for (long position = 0; position < size; position += 1 << 30) {
+                crc.update(in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1 << 30, size - position)));
+            }
+            return crc.getValue();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not read '" + filename + "'", e);
+        }
+    }
+
+    /**
+     * Forces source to disk, then renames it to target, replacing target in
+     * one step: after a crash target is either the old or the new file.
+     *
+     * @param source the new file
+     * @param target the name it should have
+     * @throws IllegalArgumentException if the file cannot be forced or renamed
+     */
+    static void replace(String source, String target) {
+        try {
+            try (FileChannel out = FileChannel.open(Paths.get(source), StandardOpenOption.WRITE)) {
+                out.force(true);
+            }
+            moveAndSync(Paths.get(source), Paths.get(target));
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save '" + target + "'", e);
+        }
+    }
+
+    // copies a record into the buffer, then writes or forces it if it is time
+    private void append(Record record) {
+        int crc = record.checksum();
+        long number;
+        boolean force;
+        boolean write;
+        lock.lock();
+        try {
+            checkOpen();
+            int needed = 5 + record.length + 4;
+            if (length + needed > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + needed));
+            }
+            int start = length;
+            length = putVarint(buffer, length, record.length);
+            System.arraycopy(record.bytes, 0, buffer, length, record.length);
+            length += record.length;
+            buffer[length++] = (byte) (crc >>> 24);
+            buffer[length++] = (byte) (crc >>> 16);
+            buffer[length++] = (byte) (crc >>> 8);
+            buffer[length++] = (byte) crc;
+            bytes += length - start;
+
+            number = ++appended;
+            force = syncEvery > 0 && number - durable >= syncEvery;
+            write = length >= BUFFER_BYTES;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (force || write) {
+            flush(number, force);
+        }
+    }
+
+    /*
+     * Returns once the first upTo records have been written, and forced to
+     * disk if force is true. The first thread to get here writes every record
+     * appended so far; threads that arrive while it writes wait for it, and
+     * the next of them writes what was appended in the meantime.
+     */
+    private void flush(long upTo, boolean force) {
+        lock.lock();
+        try {
+            while ((force ? durable : written) < upTo) {
+                if (failure != null) {
+                    throw new IllegalArgumentException("unable to save mutation log '" + filename + "'", failure);
+                }
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                byte[] data = buffer;
+                int count = length;
+                long records = appended;
+                buffer = spare;
+                length = 0;
+
+                lock.unlock();
+                IOException error = null;
+                try {
+                    ByteBuffer out = ByteBuffer.wrap(data, 0, count);
+                    while (out.hasRemaining()) {
+                        channel.write(out);
+                    }
+                    if (force) {
+                        channel.force(false);
+                    }
+                }
+                catch (IOException e) {
+                    error = e;
+                }
+                finally {
+                    lock.lock();
+                }
+
+                spare = data;
+                flushing = false;
+                if (error == null) {
+                    written = records;
+                    if (force) durable = records;
+                } else {
+                    failure = error;
+                }
+                flushed.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // run by the syncer; a failure is reported to the next append instead
+    private void timedSync() {
+        try {
+            sync();
+        }
+        catch (RuntimeException e) {
+            // failure is kept
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("mutation log is closed");
+        }
+    }
+
+    // writes the header of an empty log next to filename, then moves it over filename
+    private FileChannel create(long snapshotChecksum) {
+        Path path = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(snapshotChecksum).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                out.force(true);
+            }
+            moveAndSync(temp, path);
+            return FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save mutation log '" + filename + "'", e);
+        }
+    }
+
+    // renames source to target, then forces the directory so the rename survives a crash
+    private static void moveAndSync(Path source, Path target) throws IOException {
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Path directory = target.toAbsolutePath().getParent();
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+        catch (IOException e) {
+            // not every platform can open a directory; the rename is atomic anyway
+        }
+    }
+
+    // replays one record body
+    private static void apply(ByteBuffer body, PlaylistLibrary library) {
+        byte op = body.get();
+        switch (op) {
+            case INSERT_SONG:
+                library.insertSong(readInt(body), readInt(body), readSong(body));
+                break;
+            case REMOVE_SONG:
+                library.removeSong(readInt(body), readSong(body));
+                break;
+            case REMOVE_SONGS: {
+                int playlistIndex = readInt(body);
+                int count = readInt(body);
+                ArrayList<Song> songs = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    songs.add(readSong(body));
+                }
+                library.removeSongs(playlistIndex, songs);
+                break;
+            }
+            case REVERSE:
+                library.reversePlaylist(readInt(body));
+                break;
+            case SHUFFLE: {
+                int playlistIndex = readInt(body);
+                boolean legacy = library.isLegacyShuffle();
+                library.setLegacyShuffle(readInt(body) == 1);
+                try {
+                    library.shufflePlaylist(playlistIndex);
+                }
+                finally {
+                    library.setLegacyShuffle(legacy);
+                }
+                break;
+            }
+            case SORT:
+                library.sortPlaylist(readInt(body));
+                break;
+            case MERGE: {
+                int[] playlistIndexes = new int[readInt(body)];
+                for (int i = 0; i < playlistIndexes.length; i++) {
+                    playlistIndexes[i] = readInt(body);
+                }
+                library.mergePlaylists(playlistIndexes);
+                break;
+            }
+            case MERGE_SONGS: {
+                int[] playlistIndexes = new int[readInt(body)];
+                for (int i = 0; i < playlistIndexes.length; i++) {
+                    playlistIndexes[i] = readInt(body);
+                }
+                library.mergeSongs(playlistIndexes);
+                break;
+            }
+            case ADD_PLAYLIST: {
+                int playlistIndex = readInt(body);
+                int size = readInt(body);
+                SongNode first = null;
+                SongNode last = null;
+                for (int i = 0; i < size; i++) {
+                    SongNode node = new SongNode(readSong(body), null);
+                    if (first == null) {
+                        first = node;
+                    } else {
+                        last.setNext(node);
+                    }
+                    last = node;
+                }
+                if (last != null) {
+                    last.setNext(first);
+                }
+                library.restorePlaylist(playlistIndex, new Playlist(last, size));
+                break;
+            }
+            case REMOVE_PLAYLIST:
+                library.removePlaylist(readInt(body));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown operation " + op + " in mutation log");
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint in mutation log");
+    }
+
+    private static int readInt(ByteBuffer in) {
+        int zigzag = readVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static Song readSong(ByteBuffer in) {
+        String songName = readString(in);
+        String artist = readString(in);
+        String link = readString(in);
+        int year = readInt(in);
+        int popularity = readInt(in);
+        return new Song(songName, artist, year, popularity, link);
+    }
+
+    // writes value as a varint at position and returns the position after it
+    private static int putVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    /*
+     * The body of one record, encoded by the appending thread before it
+     * takes the lock.
+     */
+    private static final class Record {
+        private byte[] bytes = new byte[64];
+        private int    length;
+
+        Record(byte op) {
+            bytes[length++] = op;
+        }
+
+        Record putInt(int value) {
+            ensure(5);
+            length = putVarint(bytes, length, (value << 1) ^ (value >> 31));
+            return this;
+        }
+
+        Record putString(String s) {
+            if (s == null) {
+                ensure(1);
+                length = putVarint(bytes, length, 0);
+                return this;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            ensure(5 + utf8.length);
+            length = putVarint(bytes, length, utf8.length + 1);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+            return this;
+        }
+
+        Record putSong(Song song) {
+            putString(song.getSongName());
+            putString(song.getArtist());
+            putString(song.getFileName());
+            putInt(song.getYear());
+            return putInt(song.getPopularity());
+        }
+
+        int checksum() {
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, length);
+            return (int) crc.getValue();
+        }
+
+        private void ensure(int more) {
+            if (length + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + more));
+            }
+        }
+    }
+}
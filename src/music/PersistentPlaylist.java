@@ -0,0 +1,299 @@
+package music;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/**
+ * This class is an immutable playlist: an implicit treap of songs, like the
+ * one in IndexedPlaylist, whose nodes are never changed once it is built.
+ *
+ * insert() and remove() return a new PersistentPlaylist and leave this one
+ * as it was. Only the O(log n) tree nodes on the path to the changed
+ * position are copied; every other node is shared between the old and the
+ * new playlist. Any number of threads may therefore read a PersistentPlaylist
+ * while others derive new versions from it, without locking.
+ *
+ * Positions start at 1, like in PlaylistLibrary.insertSong.
+ */
+
+public final class PersistentPlaylist implements Iterable<Song> {
+    public static final PersistentPlaylist EMPTY = new PersistentPlaylist(null);
+
+    private static final SplittableRandom SEEDS = new SplittableRandom();
+
+    private final Node root;
+
+    private PersistentPlaylist(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Copies the songs of a playlist, starting from getLast().getNext(),
+     * in O(n).
+     *
+     * @param playlist the playlist to copy
+     * @return the songs of playlist in order
+     */
+    public static PersistentPlaylist of(Playlist playlist) {
+        int size = playlist.getSize();
+        if (playlist.getLast() == null || size == 0) {
+            return EMPTY;
+        }
+        SplittableRandom random = random();
+        Node[] nodes = new Node[size];
+        SongNode ptr = playlist.getLast().getNext();
+        for (int i = 0; i < size; i++) {
+            nodes[i] = new Node(ptr.getSong(), random.nextInt());
+            ptr = ptr.getNext();
+        }
+        return new PersistentPlaylist(build(nodes, 0, size - 1));
+    }
+
+    public int size() {
+        return count(root);
+    }
+
+    /**
+     * Returns the Song at the given position.
+     *
+     * @param position the position of the song, between 1 and size()
+     * @return the Song at position, or null if position is out of range
+     */
+    public Song get(int position) {
+        if (position < 1 || position > size()) {
+            return null;
+        }
+        Node t = root;
+        while (true) {
+            int leftCount = count(t.left);
+            if (position <= leftCount) {
+                t = t.left;
+            } else if (position == leftCount + 1) {
+                return t.song;
+            } else {
+                position -= leftCount + 1;
+                t = t.right;
+            }
+        }
+    }
+
+    /**
+     * Returns a playlist with song inserted so that it ends up at position.
+     *
+     * @param position the position of the new song, between 1 and size() + 1
+     * @param song the song to insert
+     * @return the new playlist, or this one if position is out of range
+     */
+    public PersistentPlaylist insert(int position, Song song) {
+        if (position < 1 || position > size() + 1) {
+            return this;
+        }
+        return new PersistentPlaylist(insert(root, position - 1, song, random().nextInt()));
+    }
+
+    /**
+     * Returns a playlist without the song at position.
+     *
+     * @param position the position of the song to remove, between 1 and size()
+     * @return the new playlist, or this one if position is out of range
+     */
+    public PersistentPlaylist remove(int position) {
+        if (position < 1 || position > size()) {
+            return this;
+        }
+        return new PersistentPlaylist(remove(root, position - 1));
+    }
+
+    /**
+     * Returns the position of the first song equal to song, found with an
+     * in-order walk.
+     *
+     * @param song the song to look for
+     * @return its position, or 0 if the playlist does not contain it
+     */
+    public int positionOf(Song song) {
+        int position = 1;
+        for (Song s : this) {
+            if (song.equals(s)) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    /**
+     * Builds a new circular linked list holding the songs, for code that
+     * walks SongNodes. The list is not shared with any other playlist.
+     *
+     * @return a Playlist with the songs in the same order
+     */
+    public Playlist toPlaylist() {
+        SongNode first = null;
+        SongNode last = null;
+        for (Song song : this) {
+            SongNode node = new SongNode(song, null);
+            if (first == null) first = node;
+            else last.setNext(node);
+            last = node;
+        }
+        if (last != null) last.setNext(first);
+        return new Playlist(last, size());
+    }
+
+    /**
+     * Iterates over the songs in order.
+     */
+    @Override
+    public Iterator<Song> iterator() {
+        return new Iterator<Song>() {
+            private final ArrayDeque<Node> path = new ArrayDeque<>();
+            {
+                pushLeft(root);
+            }
+
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            public Song next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node t = path.pop();
+                pushLeft(t.right);
+                return t.song;
+            }
+
+            private void pushLeft(Node t) {
+                for (; t != null; t = t.left) {
+                    path.push(t);
+                }
+            }
+        };
+    }
+
+    // builds a balanced tree, then arranges the priorities into heap order
+    private static Node build(Node[] nodes, int lo, int hi) {
+        if (lo > hi) {
+            return null;
+        }
+        int mid = (lo + hi) >>> 1;
+        Node t = nodes[mid];
+        t.left = build(nodes, lo, mid - 1);
+        t.right = build(nodes, mid + 1, hi);
+        t.count = 1 + count(t.left) + count(t.right);
+        siftDown(t);
+        return t;
+    }
+
+    // only used while building, before the tree is shared
+    private static void siftDown(Node t) {
+        while (true) {
+            Node max = t;
+            if (t.left != null && t.left.priority > max.priority) max = t.left;
+            if (t.right != null && t.right.priority > max.priority) max = t.right;
+            if (max == t) {
+                return;
+            }
+            int temp = t.priority;
+            t.priority = max.priority;
+            max.priority = temp;
+            t = max;
+        }
+    }
+
+    // inserts a new node after the first k nodes of t, copying the path to it
+    private static Node insert(Node t, int k, Song song, int priority) {
+        if (t == null) {
+            return new Node(song, priority);
+        }
+        if (priority > t.priority) {
+            Node[] parts = split(t, k);
+            return new Node(song, priority, parts[0], parts[1]);
+        }
+        int leftCount = count(t.left);
+        if (k <= leftCount) {
+            return new Node(t.song, t.priority, insert(t.left, k, song, priority), t.right);
+        } else {
+            return new Node(t.song, t.priority, t.left, insert(t.right, k - leftCount - 1, song, priority));
+        }
+    }
+
+    // removes the node after the first k nodes of t, copying the path to it
+    private static Node remove(Node t, int k) {
+        int leftCount = count(t.left);
+        if (k < leftCount) {
+            return new Node(t.song, t.priority, remove(t.left, k), t.right);
+        } else if (k == leftCount) {
+            return merge(t.left, t.right);
+        } else {
+            return new Node(t.song, t.priority, t.left, remove(t.right, k - leftCount - 1));
+        }
+    }
+
+    // splits t into its first k nodes and the rest, copying instead of changing nodes
+    private static Node[] split(Node t, int k) {
+        if (t == null) {
+            return new Node[] {null, null};
+        }
+        if (count(t.left) >= k) {
+            Node[] parts = split(t.left, k);
+            parts[1] = new Node(t.song, t.priority, parts[1], t.right);
+            return parts;
+        } else {
+            Node[] parts = split(t.right, k - count(t.left) - 1);
+            parts[0] = new Node(t.song, t.priority, t.left, parts[0]);
+            return parts;
+        }
+    }
+
+    // concatenates two trees, copying instead of changing nodes
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            return new Node(a.song, a.priority, a.left, merge(a.right, b));
+        } else {
+            return new Node(b.song, b.priority, merge(a, b.left), b.right);
+        }
+    }
+
+    private static int count(Node t) {
+        return t == null ? 0 : t.count;
+    }
+
+    // a random generator for the calling thread's priorities
+    private static SplittableRandom random() {
+        synchronized (SEEDS) {
+            return SEEDS.split();
+        }
+    }
+
+    /*
+     * A node of the treap. The fields are only assigned while a tree is
+     * being built, before any other thread can see it.
+     */
+    private static final class Node {
+        private final Song song;
+        private int        priority;
+        private int        count = 1;  // number of nodes in this subtree
+        private Node       left;
+        private Node       right;
+
+        Node(Song song, int priority) {
+            this.song = song;
+            this.priority = priority;
+        }
+
+        Node(Song song, int priority, Node left, Node right) {
+            this.song = song;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.count = 1 + count(left) + count(right);
+        }
+    }
+}
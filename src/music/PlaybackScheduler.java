@@ -0,0 +1,251 @@
+package music;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs audio streams in the background on a bounded pool of
+ * threads, used by StdAudio.playInBackground() and loopInBackground().
+ *
+ * At most getMaxStreams() streams play at the same time; further streams wait
+ * in submission order until a thread is free. Every submitted stream gets a
+ * Stream handle that can be stopped on its own, whether it is still waiting
+ * or already playing. A stream forgets about itself once it has finished, so
+ * nothing is kept for streams that are done.
+ *
+ * The pool threads are not daemon threads, so like a plain background thread
+ * a playing stream keeps the JVM alive. They end after being idle for a
+ * second, so the JVM can exit once every stream has finished.
+ *
+ * A stream whose audio plays on a thread of its own, such as a looping
+ * Clip, holds a pool thread only while it starts: its Playback calls
+ * stream.detach() with the action that ends the audio and returns. The
+ * stream then counts as playing, without a thread of this scheduler, until
+ * stop() runs that action.
+ *
+ * All methods are thread-safe.
+ */
+
+public class PlaybackScheduler {
+    private static final long IDLE_SECONDS = 1;   // an idle pool thread ends after this long
+
+    /**
+     * The work of a stream. Implementations should check stream.isStopped()
+     * regularly and return soon after it becomes true, or hand the audio
+     * playing elsewhere to stream.detach() and return.
+     */
+    public interface Playback {
+        void play(Stream stream);
+    }
+
+    /**
+     * A handle to one submitted stream.
+     */
+    public final class Stream implements Runnable {
+        private final String   name;
+        private final Playback playback;
+
+        private Runnable stopAction;  // given to detach(), run by stop(); guarded by this
+        private boolean  returned;    // play() has returned; guarded by this
+
+        private volatile boolean stopped;
+        private volatile boolean started;
+        private volatile boolean done;
+
+        private Stream(String name, Playback playback) {
+            this.name = name;
+            this.playback = playback;
+        }
+
+        /**
+         * Asks the stream to stop. A stream that has not started yet is
+         * removed from the queue and never plays.
+         */
+        public void stop() {
+            Runnable action;
+            boolean detached;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                stopped = true;
+                action = stopAction;
+                stopAction = null;
+                detached = action != null && returned;
+            }
+            if (executor.remove(this)) {
+                finish(true);
+                return;
+            }
+            if (action != null) {
+                try {
+                    action.run();
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                // a stream still in play() is finished by its pool thread
+                if (detached) {
+                    active.decrementAndGet();
+                    finish(true);
+                }
+            }
+        }
+
+        /**
+         * Keeps the stream playing after its Playback returns, for audio
+         * that plays on a thread of its own such as a looping Clip. The pool
+         * thread is freed; stop() later runs stopAction to end the audio.
+         * If the stream has been stopped already, stopAction runs at once.
+         *
+         * @param stopAction ends the audio, called once
+         */
+        public void detach(Runnable stopAction) {
+            synchronized (this) {
+                if (!stopped) {
+                    this.stopAction = stopAction;
+                    return;
+                }
+            }
+            stopAction.run();
+        }
+
+        public String  getName()   { return name; }
+        public boolean isStopped() { return stopped; }
+        public boolean isPlaying() { return started && !done; }
+        public boolean isDone()    { return done; }
+
+        @Override
+        public String toString() {
+            return name + (done ? " (done)" : started ? " (playing)" : " (queued)");
+        }
+
+        // called by a pool thread
+        public void run() {
+            if (stopped) {
+                finish(true);
+                return;
+            }
+            started = true;
+            active.incrementAndGet();
+            try {
+                playback.play(this);
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            finally {
+                boolean detached;
+                synchronized (this) {
+                    returned = true;
+                    detached = stopAction != null;
+                }
+                if (!detached) {
+                    active.decrementAndGet();
+                    finish(stopped);
+                }
+            }
+        }
+
+        private void finish(boolean wasStopped) {
+            done = true;
+            if (streams.remove(this)) {
+                (wasStopped ? stoppedCount : completedCount).incrementAndGet();
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Set<Stream>        streams = ConcurrentHashMap.newKeySet();  // queued or playing
+
+    private final AtomicInteger active         = new AtomicInteger();
+    private final AtomicLong    submittedCount = new AtomicLong();
+    private final AtomicLong    completedCount = new AtomicLong();
+    private final AtomicLong    stoppedCount   = new AtomicLong();
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param maxStreams the most streams that may play at the same time
+     * @param threadName the prefix of the pool threads' names
+     * @throws IllegalArgumentException if maxStreams is less than 1
+     */
+    public PlaybackScheduler(int maxStreams, String threadName) {
+        if (maxStreams < 1) {
+            throw new IllegalArgumentException("maxStreams must be at least 1");
+        }
+        AtomicInteger threads = new AtomicInteger();
+        ThreadFactory factory = runnable -> new Thread(runnable, threadName + "-" + threads.incrementAndGet());
+        executor = new ThreadPoolExecutor(maxStreams, maxStreams, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a stream. It starts as soon as fewer than getMaxStreams()
+     * streams are playing.
+     *
+     * @param name a name for the stream, such as the file it plays
+     * @param playback the work of the stream
+     * @return the handle of the stream
+     */
+    public Stream submit(String name, Playback playback) {
+        Stream stream = new Stream(name, playback);
+        streams.add(stream);
+        submittedCount.incrementAndGet();
+        executor.execute(stream);
+        return stream;
+    }
+
+    /**
+     * Stops every stream that is queued or playing.
+     */
+    public void stopAll() {
+        for (Stream stream : new ArrayList<>(streams)) {
+            stream.stop();
+        }
+    }
+
+    /**
+     * Changes how many streams may play at the same time. Streams that are
+     * already playing are not stopped if there are more than maxStreams.
+     *
+     * @param maxStreams the most streams that may play at the same time
+     * @throws IllegalArgumentException if maxStreams is less than 1
+     */
+    public synchronized void setMaxStreams(int maxStreams) {
+        if (maxStreams < 1) {
+            throw new IllegalArgumentException("maxStreams must be at least 1");
+        }
+        if (maxStreams > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxStreams);
+            executor.setCorePoolSize(maxStreams);
+        }
+        else {
+            executor.setCorePoolSize(maxStreams);
+            executor.setMaximumPoolSize(maxStreams);
+        }
+    }
+
+    public synchronized int getMaxStreams() { return executor.getMaximumPoolSize(); }
+
+    /* Metrics */
+    public int  activeStreams()    { return active.get(); }
+    public int  queuedStreams()    { return Math.max(0, streams.size() - active.get()); }
+    public long submittedStreams() { return submittedCount.get(); }
+    public long completedStreams() { return completedCount.get(); }
+    public long stoppedStreams()   { return stoppedCount.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("PlaybackScheduler[%d active, %d queued, %d submitted, %d completed, %d stopped]",
+                activeStreams(), queuedStreams(), submittedStreams(), completedStreams(), stoppedStreams());
+    }
+}
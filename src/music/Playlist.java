@@ -12,6 +12,8 @@ package music;
 public class Playlist {
     private SongNode last; // reference to the last node in the Circular Linked List
     private int      size; // the number of SongNodes (songs) in the list
+    private SongIndex songIndex; // optional hash index used by removeSong, null if disabled
+    private int      modCount; // number of calls to setLast() and setSize()
 
     /*
      * Constructor
@@ -30,8 +32,18 @@ public class Playlist {
 
     /* Getter and setter methods */
     public SongNode getLast() {return last;}
-    public void setLast(SongNode last) {this.last = last;}
+    public void setLast(SongNode last) {this.last = last; modCount++;}
 
     public int getSize() {return size;}
-    public void setSize(int size) {this.size = size;}
+    public void setSize(int size) {this.size = size; modCount++;}
+
+    /*
+     * Every change PlaylistLibrary makes to the songs goes through setLast() 
+     * or setSize(), so a playlist whose modCount is the same as before has 
+     * not been changed by the library in between
+     */
+    public int getModCount() {return modCount;}
+
+    public SongIndex getSongIndex() {return songIndex;}
+    public void setSongIndex(SongIndex songIndex) {this.songIndex = songIndex;}
 }
@@ -0,0 +1,206 @@
+package music;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * This class decodes the audio of every song in a playlist with
+ * StdAudio.read(), several songs at a time on a ForkJoinPool.
+ *
+ * The samples are handed to a Sink on the calling thread in playlist order,
+ * starting from getLast().getNext(). Decoded samples that the sink has not
+ * received yet count against a memory budget: a song is only given to the
+ * pool once its estimated size fits in what is left of the budget, so the
+ * workers never run further ahead of the sink than the budget allows. The
+ * next song in order is always started, even if it alone is larger than
+ * the budget. decodeAll() keeps every result, so it does not use the budget.
+ *
+ * The size of a song is estimated from its file before decoding (8 bytes
+ * per sample at 44,100 Hz mono). Songs whose length cannot be found out
+ * that way, such as resources and URLs, count as empty.
+ */
+
+public class PlaylistDecoder {
+    private static final long DEFAULT_MAX_BYTES = 512L << 20;
+
+    /**
+     * Receives the decoded songs in playlist order.
+     */
+    public interface Sink {
+        /**
+         * @param song the song
+         * @param samples its samples as returned by StdAudio.read(), or null
+         * if the song has no link
+         */
+        void accept(Song song, double[] samples);
+    }
+
+    private final ForkJoinPool pool;
+    private final long         maxBytes;
+
+    /**
+     * Creates a decoder that uses the common ForkJoinPool and a budget of
+     * 512 MB.
+     */
+    public PlaylistDecoder() {
+        this(ForkJoinPool.commonPool(), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a decoder.
+     *
+     * @param pool the pool that decodes the songs
+     * @param maxBytes the most bytes of samples decoded ahead of the sink
+     * @throws IllegalArgumentException if maxBytes is negative
+     */
+    public PlaylistDecoder(ForkJoinPool pool, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Decodes every song of the playlist and returns the samples in
+     * playlist order. All the samples are held at once, so the memory
+     * budget does not apply: every song is given to the pool right away.
+     * Use decode() with a Sink to keep memory bounded.
+     *
+     * @param playlist the playlist to decode
+     * @return one array per song, null for songs without a link
+     * @throws IllegalArgumentException if a song's link cannot be read
+     */
+    public double[][] decodeAll(Playlist playlist) {
+        double[][] result = new double[playlist.getSize()][];
+        int[] next = {0};
+        decode(playlist, (song, samples) -> result[next[0]++] = samples, Long.MAX_VALUE);
+        return result;
+    }
+
+    /**
+     * Decodes every song of the playlist and hands the samples to sink in
+     * playlist order, on the calling thread.
+     *
+     * @param playlist the playlist to decode
+     * @param sink receives the samples
+     * @throws IllegalArgumentException if a song's link cannot be read
+     */
+    public void decode(Playlist playlist, Sink sink) {
+        decode(playlist, sink, maxBytes);
+    }
+
+    // decodes with at most maxBytes of estimated samples waiting for the sink
+    private void decode(Playlist playlist, Sink sink, long maxBytes) {
+        ArrayList<Song> songs = new ArrayList<>(playlist.getSize());
+        if (playlist.getLast() != null) {
+            SongNode first = playlist.getLast().getNext();
+            SongNode ptr = first;
+            do {
+                songs.add(ptr.getSong());
+                ptr = ptr.getNext();
+            } while (ptr != first);
+        }
+
+        int n = songs.size();
+        long[] estimate = new long[n];
+        List<ForkJoinTask<double[]>> tasks = new ArrayList<>(Collections.nCopies(n, null));
+        long reserved = 0;   // estimated bytes submitted but not yet handed to the sink
+        int estimated = 0;
+        int submitted = 0;
+
+        try {
+            for (int next = 0; next < n; next++) {
+                // start as many songs as fit in the budget, and always the next one
+                while (submitted < n) {
+                    if (estimated == submitted) {
+                        // without a budget there is nothing to estimate
+                        estimate[estimated++] = maxBytes == Long.MAX_VALUE ? 0 : estimate(songs.get(submitted));
+                    }
+                    if (submitted > next && reserved + estimate[submitted] > maxBytes) {
+                        break;
+                    }
+                    reserved += estimate[submitted];
+                    String link = songs.get(submitted).getLink();
+                    tasks.set(submitted, link == null ? null : pool.submit(ForkJoinTask.adapt(() -> StdAudio.read(link))));
+                    submitted++;
+                }
+
+                double[] samples = tasks.get(next) == null ? null : result(tasks.get(next));
+                tasks.set(next, null);
+                reserved -= estimate[next];
+                sink.accept(songs.get(next), samples);
+            }
+        }
+        finally {
+            for (int i = 0; i < submitted; i++) {
+                if (tasks.get(i) != null) tasks.get(i).cancel(false);
+            }
+        }
+    }
+
+    // waits for a decoded song, rethrowing what StdAudio.read() threw
+    private static double[] result(ForkJoinTask<double[]> task) {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while decoding playlist", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("could not decode playlist", e.getCause());
+        }
+    }
+
+    // estimated bytes of the double[] that StdAudio.read() returns for song
+    private static long estimate(Song song) {
+        String link = song.getLink();
+        if (link == null) {
+            return 0;
+        }
+        File file = new File(link);
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        long frames;
+        float frameRate;
+        WavFile wav = WavFile.open(file);
+        if (wav != null) {
+            frames = wav.getFrames();
+            frameRate = wav.getFormat().getFrameRate();
+            wav.close();
+        }
+        else {
+            try {
+                AudioFileFormat format = AudioSystem.getAudioFileFormat(file);
+                frames = format.getFrameLength();
+                frameRate = format.getFormat().getFrameRate();
+            }
+            catch (IOException | UnsupportedAudioFileException e) {
+                return 0; // StdAudio.read() reports the problem
+            }
+        }
+        if (frames < 0 || frameRate <= 0) {
+            return 8 * file.length();  // length unknown: at most a sample per byte
+        }
+        return 8 * (long) Math.ceil(frames * (double) StdAudio.SAMPLE_RATE / frameRate);
+    }
+}
@@ -1,6 +1,15 @@
 package music;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class represents a library of song playlists.
@@ -38,84 +47,31 @@ public class PlaylistLibrary {
      * playlist from it.
      * Each song is on a different line.
      * 
-     * 1. Open the file using StdIn.setFile(filename);
-     * 
-     * 2. Declare a reference that will refer to the last song of the circular linked list.
-     * 
-     * 3. While there are still lines in the input file:
-     *      1. read a song from the file
-     *      2. create an object of type Song with the song information
-     *      3. Create a SongNode object that holds the Song object from step 3.2.
-     *      4. insert the Song object at the END of the circular linked list (use the reference from step 2)
-     *      5. increase the count of the number of songs
-     * 
-     * 4. Create a Playlist object with the reference from step (2) and the number of songs in the playlist
-     * 
-     * 5. Return the Playlist object
+     * The file is read by a CsvPlaylistReader, which memory-maps it and 
+     * builds the Song and SongNode objects directly from the mapped bytes, 
+     * inserting each song at the END of the circular linked list.
      * 
      * Each line of the input file has the following format:
      *      songName,artist,year,popularity,link
      * 
-     * To read a line, use StdIn.readline(), then use .split(",") to extract 
-     * fields from the line.
-     * 
      * If the playlist is empty, return a Playlist object with null for its last, 
      * and 0 for its size.
      * 
      * The input file has Songs in decreasing popularity order.
      * 
-     * DO NOT implement a sorting method, PRACTICE add to end.
-     * 
      * @param filename the playlist information input file
      * @return a Playlist object, which contains a reference to the LAST song 
      * in the ciruclar linkedlist playlist and the size of the playlist.
+     * @throws IllegalArgumentException if the file cannot be read
      */
     public Playlist createPlaylist(String filename) {
 
-    // Initialize variables
-    SongNode lastSong = null;
-    int songCount = 0;
-
-    // Open the file
-    StdIn.setFile(filename);
-
-    // Read the file line by line
-    while (!StdIn.isEmpty()) {
-        // Read a line and split it by ","
-        String[] songData = StdIn.readLine().split(",");
-        String songName = songData[0];
-        String artist = songData[1];
-        int year = Integer.parseInt(songData[2]);
-        int popularity = Integer.parseInt(songData[3]);
-        String link = songData[4];
-
-        // Create a Song object
-        Song song = new Song(songName, artist, year, popularity, link);
-
-        // Create a SongNode with the Song object
-        SongNode songNode = new SongNode(song, null);
-
-        // Insert the SongNode at the end of the circular linked list
-        if (lastSong == null) {
-            lastSong = songNode;
-            lastSong.setNext(songNode); // Circular reference to itself for the first node
-        } else {
-            songNode.setNext(lastSong.getNext());
-            lastSong.setNext(songNode);
-            lastSong = songNode;
+        Playlist playlist = new CsvPlaylistReader().read(filename);
+        if (indexSongs) {
+            playlist.setSongIndex(new SongIndex(playlist));
         }
-
-        // Increment the song count
-        songCount++;
-    }
-
-    // Create a Playlist object with the lastSong reference and songCount
-    Playlist playlist = new Playlist();
-    playlist.setLast(lastSong);
-    playlist.setSize(songCount);
-
-    // Return the Playlist object
-    return playlist;
+        playlistAdded();  // addPlaylist puts it into the list next
+        return playlist;
     }
 
     /**
@@ -180,20 +136,76 @@ public class PlaylistLibrary {
      * The playlist will have the same index in songLibrary as it has in
      * the filenames array. For example if the playlist is being created
      * from the filename[i] it will be added to songLibrary[i]. 
-     * Use the addPlaylist() method. 
+     * 
+     * The files are parsed concurrently, see addAllPlaylists(String[], int).
      * 
      * @param filenames an array of the filenames of playlists that should be 
      * added to the library
      */
     public void addAllPlaylists(String[] filenames) {
-        
-    // Initialize the songLibrary
-    songLibrary = new ArrayList<Playlist>();
-
-    // For each filename, add the playlist to songLibrary
-    for (int i = 0; i < filenames.length; i++) {
-        addPlaylist(filenames[i], i);
+        addAllPlaylists(filenames, Runtime.getRuntime().availableProcessors());
     }
+
+    /**
+     * Adds the playlists from many files into a new songLibrary, parsing up 
+     * to threads files at the same time.
+     * 
+     * Every file is parsed by createPlaylist on a worker of a fixed-size 
+     * pool; createPlaylist keeps no shared reader state, so the workers are 
+     * independent. The playlist created from filenames[i] is stored at 
+     * index i of songLibrary.
+     * 
+     * @param filenames an array of the filenames of playlists that should be 
+     * added to the library
+     * @param threads the maximum number of files parsed concurrently
+     * @return the time spent parsing each file, in nanoseconds, in the same 
+     * order as filenames
+     * @throws IllegalArgumentException if threads is less than 1
+     */
+    public long[] addAllPlaylists(String[] filenames, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        Playlist[] playlists = new Playlist[filenames.length];
+        long[] parseTimes = new long[filenames.length];
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, filenames.length)));
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < filenames.length; i++) {
+                final int index = i;
+                results.add(pool.submit(() -> {
+                    long start = System.nanoTime();
+                    playlists[index] = createPlaylist(filenames[index]);
+                    parseTimes[index] = System.nanoTime() - start;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading playlists", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("could not load playlists", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        // Future.get() makes every worker's writes visible here
+        songLibrary = new ArrayList<Playlist>(Arrays.asList(playlists));
+        logPlaylists();
+        return parseTimes;
     }
 
     /**
@@ -218,6 +230,7 @@ public class PlaylistLibrary {
      */
     public boolean insertSong(int playlistIndex, int position, Song song) {
         // WRITE YOUR CODE HERE
+        logPlaylists();
 
         // Ensure songLibrary has been initialized
         if (songLibrary == null) {
@@ -244,10 +257,27 @@ public class PlaylistLibrary {
             return false;
         }
 
+        // Indexed playlists find the insertion point in O(log n).
+        if (playlist instanceof IndexedPlaylist) {
+            IndexedPlaylist indexed = (IndexedPlaylist) playlist;
+            if (!indexed.insert(position, song)) {
+                return false;
+            }
+            if (libraryIndex != null) {
+                libraryIndex.added(playlist, indexed.getNode(position));
+            }
+            if (mutationLog != null) {
+                mutationLog.insertSong(playlistIndex, position, song);
+                checkpointIfDue();
+            }
+            return true;
+        }
+
         // Create the new song node.
         SongNode newNode = new SongNode(song, null);
 
         // Insert the song at the given position.
+        SongNode prev = playlist.getLast(); // The node the new song will follow.
 
         // Special case: inserting at the beginning.
         if (position == 1) {
@@ -268,19 +298,58 @@ public class PlaylistLibrary {
             }
             newNode.setNext(current.getNext());  // Set the new node's next pointer.
             current.setNext(newNode);  // Insert the new node after the current node.
+            prev = current;
 
             // If we're inserting at the end, update the playlist's last node pointer.
             if (position == playlistSize + 1) {
                 playlist.setLast(newNode);
             }
         }
+
+        if (playlist.getSongIndex() != null) {
+            playlist.getSongIndex().added(prev, newNode);
+        }
+
         // Increase the playlist's size.
         playlist.setSize(playlistSize + 1);
 
+        if (libraryIndex != null) {
+            libraryIndex.added(playlist, newNode);
+        }
+        if (mutationLog != null) {
+            mutationLog.insertSong(playlistIndex, position, song);
+            checkpointIfDue();
+        }
+
         return true;
     }
 
 
+    /**
+     * Replaces the playlist at playlistIndex with an IndexedPlaylist holding 
+     * the same SongNodes, so positional inserts into it take O(log n) instead 
+     * of a walk along the circular linked list.
+     * 
+     * @param playlistIndex the playlist to index
+     * @return the indexed playlist, now stored at playlistIndex
+     */
+    public IndexedPlaylist indexPlaylist(int playlistIndex) {
+        Playlist playlist = songLibrary.get(playlistIndex);
+        if (playlist instanceof IndexedPlaylist) {
+            return (IndexedPlaylist) playlist;
+        }
+        IndexedPlaylist indexed = new IndexedPlaylist(playlist);
+        indexed.setSongIndex(playlist.getSongIndex());  // the nodes and their predecessors are the same
+        logPlaylists();
+        songLibrary.set(playlistIndex, indexed);
+        playlistAdded();
+        if (mutationLog != null) {
+            logged[playlistIndex] = indexed;  // same songs, nothing to log
+            loggedStamp.update(this);
+        }
+        return indexed;
+    }
+
     /**
      * This method removes a song at a specified playlist, if the song exists. 
      *
@@ -301,59 +370,296 @@ public class PlaylistLibrary {
      */
     public boolean removeSong(int playlistIndex, Song song) {
         // WRITE YOUR CODE HERE
+        return removeSongAt(playlistIndex, song) != 0;
+    }
+
+    /*
+     * Removes a song like removeSong and returns the position it was 
+     * removed from: 0 if the song is not in the playlist, and -1 if the 
+     * playlist is not an IndexedPlaylist, which is the only one that knows 
+     * the position of a SongNode without a walk.
+     */
+    int removeSongAt(int playlistIndex, Song song) {
+        logPlaylists();
         // Ensure songLibrary has been initialized
         if (songLibrary == null) {
-            return false;
+            return 0;
         }
 
         // Check if the playlist index is valid.
         if (playlistIndex < 0 || playlistIndex >= songLibrary.size()) {
-            return false;
+            return 0;
         }
 
         Playlist playlist = songLibrary.get(playlistIndex);
 
         // Check if the playlist or its last node is null
         if (playlist == null || playlist.getLast() == null) {
-            return false;
+            return 0;
         }
 
-        int playlistSize = playlist.getSize();
-        if (playlistSize == 0) {
-            return false; // Empty playlist, nothing to remove
+        if (playlist.getSize() == 0) {
+            return 0; // Empty playlist, nothing to remove
         }
 
-        if (playlistSize == 1){
-            playlist.setLast(null);
-            playlist.setSize(playlistSize-1);
-            return true;
+        // With a song index the predecessor is a hash lookup away. Songs that 
+        // occur more than once are searched so the first occurrence goes.
+        SongIndex index = playlist.getSongIndex();
+        SongNode prev = null;
+        if (index != null) {
+            int occurrences = index.count(song);
+            if (occurrences == 0) {
+                return 0; // Song not found in the playlist.
+            }
+            if (occurrences == 1) {
+                prev = index.predecessorOf(song);
+            }
+        }
+        if (prev == null) {
+            prev = findPredecessor(playlist, song);
+            if (prev == null) {
+                return 0; // Song not found in the playlist.
+            }
         }
 
-        SongNode current = playlist.getLast().getNext();  // Start at the first song.
-        SongNode prev = playlist.getLast();  // Initialize prev to the last song.
+        int position = -1;
+        if (playlist instanceof IndexedPlaylist) {
+            position = ((IndexedPlaylist) playlist).positionOf(prev.getNext());
+        }
+        unlinkAfter(playlist, prev);
+        if (mutationLog != null) {
+            mutationLog.removeSong(playlistIndex, song);
+            checkpointIfDue();
+        }
+        return position; // Song found and removed.
+    }
 
-        for (int i = 0; i < playlistSize; i++) {
-            // Check if the current song is the one to remove.
-            if (song.equals(current.getSong())) {
-                // Special case: Removing the last song in the list.
-                if (current == playlist.getLast()) {
-                    playlist.setLast(prev);
-                }
+    /**
+     * This method removes every song of the collection from a specified 
+     * playlist in a single pass over the circular linked list.
+     * 
+     * Each element of songs removes one matching song, starting from the 
+     * front of the playlist, so the result is the same as calling removeSong 
+     * once per element.
+     * 
+     * @param playlistIndex the playlist index within the songLibrary
+     * @param songs the songs to remove
+     * @return the number of songs that have been removed
+     */
+    public int removeSongs(int playlistIndex, Collection<Song> songs) {
+        logPlaylists();
+        if (songLibrary == null || playlistIndex < 0 || playlistIndex >= songLibrary.size()) {
+            return 0;
+        }
+        Playlist playlist = songLibrary.get(playlistIndex);
+        if (playlist == null || playlist.getLast() == null || songs.isEmpty()) {
+            return 0;
+        }
 
-                // Remove the current node by adjusting the 'next' pointer of the previous node.
-                prev.setNext(current.getNext());
+        // Count how many times each song still has to be removed
+        HashMap<Song, Integer> pending = new HashMap<>();
+        for (Song song : songs) {
+            pending.merge(song, 1, Integer::sum);
+        }
 
-                // Decrease the size of the playlist.
-                playlist.setSize(playlistSize - 1);
-                return true; // Song found and removed.
+        int removed = 0;
+        int size = playlist.getSize();
+        SongNode prev = playlist.getLast();
+        for (int i = 0; i < size && !pending.isEmpty(); i++) {
+            SongNode current = prev.getNext();
+            Integer count = pending.get(current.getSong());
+            if (count == null) {
+                prev = current;
+                continue;
+            }
+            if (count == 1) {
+                pending.remove(current.getSong());
+            } else {
+                pending.put(current.getSong(), count - 1);
             }
+            unlinkAfter(playlist, prev);
+            removed++;
+        }
+        if (mutationLog != null && removed > 0) {
+            mutationLog.removeSongs(playlistIndex, songs);
+            checkpointIfDue();
+        }
+        return removed;
+    }
 
-            // Move to the next song.
-            prev = current;
-            current = current.getNext();
+    /*
+     * Returns the node before the first song equal to song, or null if the 
+     * playlist does not contain it.
+     */
+    private static SongNode findPredecessor(Playlist playlist, Song song) {
+        SongNode prev = playlist.getLast();  // Initialize prev to the last song.
+        for (int i = 0; i < playlist.getSize(); i++) {
+            if (song.equals(prev.getNext().getSong())) {
+                return prev;
+            }
+            prev = prev.getNext();
+        }
+        return null;
+    }
+
+    /*
+     * Removes the node after prev from the playlist, keeping last, size 
+     * and the song index up to date.
+     */
+    private void unlinkAfter(Playlist playlist, SongNode prev) {
+        if (playlist instanceof IndexedPlaylist) {
+            // takes the node out of the tree as well, in O(log n)
+            SongNode removed = ((IndexedPlaylist) playlist).removeAfter(prev);
+            if (libraryIndex != null) libraryIndex.removed(removed);
+            return;
         }
+        SongNode current = prev.getNext();
+        SongIndex index = playlist.getSongIndex();
 
-        return false; // Song not found in the playlist.
+        if (current == prev) {
+            // Removing the only song.
+            playlist.setLast(null);
+            if (index != null) index.clear();
+        } else {
+            prev.setNext(current.getNext());
+            // Special case: Removing the last song in the list.
+            if (current == playlist.getLast()) {
+                playlist.setLast(prev);
+            }
+            if (index != null) index.removed(prev, current);
+        }
+        playlist.setSize(playlist.getSize() - 1);
+        if (libraryIndex != null) libraryIndex.removed(current);
+    }
+
+    /**
+     * Turns the per-playlist song index on or off for every playlist in the 
+     * library. While it is on, removeSong finds a song with a hash lookup 
+     * instead of comparing it against every node, and playlists created 
+     * with createPlaylist are indexed as they are loaded.
+     * 
+     * @param enabled true to build the indexes, false to drop them
+     */
+    public void setIndexSongs(boolean enabled) {
+        indexSongs = enabled;
+        if (songLibrary == null) {
+            return;
+        }
+        for (Playlist playlist : songLibrary) {
+            playlist.setSongIndex(enabled ? new SongIndex(playlist) : null);
+        }
+    }
+
+    public boolean isIndexSongs() { return indexSongs; }
+
+    // true if new playlists should get a SongIndex
+    private boolean indexSongs = false;
+
+    /**
+     * Turns the library-wide index by artist, year and popularity on or off.
+     * While it is on, findByArtist, findByYear, findMostPopular and 
+     * searchSongs answer from the index instead of walking every playlist, 
+     * and insertSong, removeSong, removeSongs and mergePlaylists keep it up 
+     * to date.
+     * 
+     * @param enabled true to build the index, false to drop it
+     */
+    public void setIndexLibrary(boolean enabled) {
+        libraryIndex = enabled ? new LibraryIndex(this) : null;
+    }
+
+    public boolean isIndexLibrary() { return libraryIndex != null; }
+
+    // index over the songs of every playlist, null if disabled
+    private LibraryIndex libraryIndex;
+
+    /**
+     * Finds the songs by an artist in every playlist, in no particular 
+     * order. Needs setIndexLibrary(true).
+     * 
+     * @param artist the artist to look for
+     * @param limit the most songs to return
+     * @return up to limit songs, each with the index of its playlist
+     * @throws IllegalStateException if the library index is off
+     */
+    public List<LibraryIndex.Hit> findByArtist(String artist, int limit) {
+        return libraryIndex().byArtist(artist, limit);
+    }
+
+    /**
+     * Finds the songs of every playlist released between fromYear and 
+     * toYear with a popularity between minPopularity and maxPopularity, 
+     * all bounds included, by increasing year and then decreasing 
+     * popularity. Needs setIndexLibrary(true).
+     * 
+     * @param fromYear the first year
+     * @param toYear the last year
+     * @param minPopularity the lowest popularity
+     * @param maxPopularity the highest popularity
+     * @param limit the most songs to return
+     * @return up to limit songs, each with the index of its playlist
+     * @throws IllegalStateException if the library index is off
+     */
+    public List<LibraryIndex.Hit> findByYear(int fromYear, int toYear, int minPopularity, int maxPopularity, int limit) {
+        return libraryIndex().range(fromYear, toYear, minPopularity, maxPopularity, limit);
+    }
+
+    /**
+     * Finds the k most popular songs of every playlist released between 
+     * fromYear and toYear, both included. Needs setIndexLibrary(true).
+     * 
+     * @param fromYear the first year
+     * @param toYear the last year
+     * @param k the most songs to return
+     * @return up to k songs by decreasing popularity, each with the index 
+     * of its playlist
+     * @throws IllegalStateException if the library index is off
+     */
+    public List<LibraryIndex.Hit> findMostPopular(int fromYear, int toYear, int k) {
+        return libraryIndex().top(fromYear, toYear, k);
+    }
+
+    /**
+     * Finds the most popular songs of every playlist whose name and artist 
+     * contain the words of the query, ignoring case. The last word may be 
+     * incomplete, so the query can be completed as it is typed. Needs 
+     * setIndexLibrary(true).
+     * 
+     * @param query the words to look for
+     * @param k the most songs to return
+     * @return up to k songs by decreasing popularity, each with the index 
+     * of its playlist
+     * @throws IllegalStateException if the library index is off
+     */
+    public List<LibraryIndex.Hit> searchSongs(String query, int k) {
+        return libraryIndex().search(query, k);
+    }
+
+    // brings the library index, if any, up to date with the playlists in the library
+    void syncLibraryIndex() {
+        if (libraryIndex != null) {
+            libraryIndex.sync();
+        }
+    }
+
+    private LibraryIndex libraryIndex() {
+        if (libraryIndex == null) {
+            throw new IllegalStateException("library index is off, see setIndexLibrary");
+        }
+        return libraryIndex;
+    }
+
+    /*
+     * Rebuilds the song index of a playlist whose ring has been rewired, 
+     * and its tree if it is an IndexedPlaylist.
+     */
+    private static void reindex(Playlist playlist) {
+        if (playlist instanceof IndexedPlaylist) {
+            ((IndexedPlaylist) playlist).reindex();
+        }
+        if (playlist.getSongIndex() != null) {
+            playlist.getSongIndex().rebuild(playlist);
+        }
     }
 
 
@@ -371,6 +677,7 @@ public class PlaylistLibrary {
      */
     public void reversePlaylist(int playlistIndex) {
         // WRITE YOUR CODE HERE
+        logPlaylists();
         
     Playlist currentPlaylist = songLibrary.get(playlistIndex);
 
@@ -378,6 +685,14 @@ public class PlaylistLibrary {
         return; // Nothing to reverse
     }
 
+    if (currentPlaylist instanceof IndexedPlaylist) {
+        // Reverses the ring and flips the tree without rebuilding it
+        ((IndexedPlaylist) currentPlaylist).reverse();
+        if (currentPlaylist.getSongIndex() != null) {
+            currentPlaylist.getSongIndex().rebuild(currentPlaylist);
+        }
+    } else {
+
     SongNode firstNode = currentPlaylist.getLast().getNext(); // Store the first node
 
     // Traverse the playlist and update the next pointers to reverse the list
@@ -393,6 +708,12 @@ public class PlaylistLibrary {
 
     // Update the last reference to point to the original first node (original last node)
     currentPlaylist.setLast(firstNode);  
+    reindex(currentPlaylist);
+    }
+    if (mutationLog != null) {
+        mutationLog.reversePlaylist(playlistIndex);
+        checkpointIfDue();
+    }
 
     }
 
@@ -414,197 +735,327 @@ public class PlaylistLibrary {
      * @param playlistIndex1 the first playlist to merge into one playlist
      * @param playlistIndex2 the second playlist to merge into one playlist
      */ 
+    public void mergePlaylists(int playlistIndex1, int playlistIndex2) {
 
-
-
-     public void mergePlaylists(int playlistIndex1, int playlistIndex2) {
-
+        logPlaylists();
         int lowerIndex = Math.min(playlistIndex1, playlistIndex2);
         int higherIndex = Math.max(playlistIndex1, playlistIndex2);
 
+        if (lowerIndex == higherIndex) {
+            return; // A playlist merged with itself stays the same
+        }
 
+        mergeSongs(lowerIndex, higherIndex);
+        logMerge(lowerIndex, higherIndex);
+        removePlaylist(higherIndex);
+        checkpointIfDue();
+    }
+
+    /*
+     * The first step of mergePlaylists(int, int): moves every song of the 
+     * playlist at higherIndex into the one at lowerIndex, leaving the higher 
+     * playlist empty. Nothing is removed or logged, so 
+     * ConcurrentPlaylistLibrary can take this step holding the locks of the 
+     * two playlists only.
+     */
+    void mergeSongs(int lowerIndex, int higherIndex) {
         Playlist lowerPlaylist = songLibrary.get(lowerIndex);
         Playlist higherPlaylist = songLibrary.get(higherIndex);
 
-        if (lowerPlaylist.getSize()==0 && higherPlaylist.getSize() == 0) {
-        return;
-        }
-
-        SongNode mergedLast = null;
-        SongNode mergedFirst = null;
-
+        boolean indexed = lowerPlaylist.getSongIndex() != null || higherPlaylist.getSongIndex() != null;
         int totalSongs = lowerPlaylist.getSize() + higherPlaylist.getSize();
 
-        while (lowerPlaylist.getSize() > 0 && higherPlaylist.getSize() > 0) {
-            SongNode lowerFirst = lowerPlaylist.getLast().getNext();
-            SongNode higherFirst = higherPlaylist.getLast().getNext();
-
-            boolean useLower = lowerFirst.getSong().getPopularity() >= higherFirst.getSong().getPopularity();
-
-            SongNode toMove;
-            if (useLower) {
-                toMove = lowerFirst;
-                lowerPlaylist.getLast().setNext(lowerFirst.getNext());
-                if (lowerFirst == lowerPlaylist.getLast()) {
-                    lowerPlaylist.setLast(null);
+        if (higherPlaylist.getLast() == null) {
+            // Nothing to take from the higher playlist
+        } else if (lowerPlaylist.getLast() == null) {
+            lowerPlaylist.setLast(higherPlaylist.getLast());
+        } else {
+            // Break both circles, then merge the two chains in one pass
+            SongNode lowerLast = lowerPlaylist.getLast();
+            SongNode higherLast = higherPlaylist.getLast();
+            SongNode lower = lowerLast.getNext();
+            SongNode higher = higherLast.getNext();
+            lowerLast.setNext(null);
+            higherLast.setNext(null);
+
+            SongNode mergedFirst = null;
+            SongNode mergedLast = null;
+            while (lower != null && higher != null) {
+                SongNode toMove;
+                if (lower.getSong().getPopularity() >= higher.getSong().getPopularity()) {
+                    toMove = lower;
+                    lower = lower.getNext();
+                } else {
+                    toMove = higher;
+                    higher = higher.getNext();
                 }
-                lowerPlaylist.setSize(lowerPlaylist.getSize() - 1);
-            } else {
-                toMove = higherFirst;
-                higherPlaylist.getLast().setNext(higherFirst.getNext());
-                if (higherFirst == higherPlaylist.getLast()) {
-                    higherPlaylist.setLast(null);
+                if (mergedLast == null) {
+                    mergedFirst = toMove;
+                } else {
+                    mergedLast.setNext(toMove);
                 }
-                higherPlaylist.setSize(higherPlaylist.getSize() - 1);
+                mergedLast = toMove;
             }
 
-            if (mergedLast == null) {
-                mergedLast = toMove;
-                mergedFirst = toMove;
-                toMove.setNext(toMove);
+            // Append what is left; its last node becomes the merged last
+            if (lower != null) {
+                mergedLast.setNext(lower);
+                mergedLast = lowerLast;
             } else {
-                toMove.setNext(mergedFirst);
-                mergedLast.setNext(toMove);
-                mergedLast = toMove;
+                mergedLast.setNext(higher);
+                mergedLast = higherLast;
             }
+            mergedLast.setNext(mergedFirst);
+            lowerPlaylist.setLast(mergedLast);
         }
 
-        Playlist nonEmptyPlaylist;
+        lowerPlaylist.setSize(totalSongs);
+        mergedInto(lowerPlaylist, indexed, higherPlaylist);
+    }
 
-        if (lowerPlaylist.getSize() > 0) {
-            nonEmptyPlaylist = lowerPlaylist;
-        } else {
-            nonEmptyPlaylist = higherPlaylist;
+    /**
+     * This method merges any number of playlists.
+     * 
+     * All playlists are assumed to be in decreasing popularity order, and the 
+     * result is too. If songs have the same popularity, the song from the 
+     * playlist with the lower playlistIndex comes first. A heap holding the 
+     * next song of every playlist picks each song in O(log k), so merging k 
+     * playlists with n songs in total takes O(n log k).
+     * 
+     * The merged playlist is stored at the lowest of the indexes and the 
+     * other playlists are removed from the library. Repeated indexes are 
+     * merged only once.
+     * 
+     * @param playlistIndexes the playlists to merge into one playlist
+     */
+    public void mergePlaylists(int... playlistIndexes) {
+        logPlaylists();
+        int[] indexes = Arrays.stream(playlistIndexes).distinct().sorted().toArray();
+        if (indexes.length < 2) {
+            return;
         }
-        if (mergedLast == null) {
-            mergedLast = nonEmptyPlaylist.getLast();
-            mergedFirst = nonEmptyPlaylist.getLast().getNext();
-        } else if (nonEmptyPlaylist.getLast() != null) {
-            mergedLast.setNext(nonEmptyPlaylist.getLast().getNext());
-            nonEmptyPlaylist.getLast().setNext(mergedFirst);
+
+        mergeSongs(indexes);
+        logMerge(indexes);
+
+        // Remove from the highest index down so the lower indexes stay valid
+        for (int i = indexes.length - 1; i > 0; i--) {
+            removePlaylist(indexes[i]);
         }
+        checkpointIfDue();
+    }
 
-        lowerPlaylist.setLast(mergedLast);
-        lowerPlaylist.setSize(lowerPlaylist.getSize() + higherPlaylist.getSize());
-        removePlaylist(higherIndex);
+    /*
+     * The first step of mergePlaylists(int...): moves every song of the 
+     * playlists at indexes, which are distinct and increasing, into the one 
+     * at indexes[0] and leaves the others empty, like mergeSongs(int, int).
+     */
+    void mergeSongs(int[] indexes) {
+        // Look every playlist up first, so an invalid index changes nothing
+        Playlist[] playlists = new Playlist[indexes.length];
+        for (int rank = 0; rank < indexes.length; rank++) {
+            playlists[rank] = songLibrary.get(indexes[rank]);
+        }
 
-        if (mergedLast != null) {
-            SongNode current = mergedLast.getNext(); // Start from the first song
-            SongNode highestPopularityNode = mergedLast;
-            int highestPopularity = mergedLast.getSong().getPopularity();
-
-            do {
-                if (current.getSong().getPopularity() > highestPopularity) {
-                    highestPopularity = current.getSong().getPopularity();
-                    highestPopularityNode = current;
-                }
-                current = current.getNext();
-            } while (current != mergedLast.getNext()); // Loop until we've checked all songs
+        boolean indexed = false;
+        int totalSongs = 0;
+
+        // One cursor per non-empty playlist; circles are broken into chains
+        PriorityQueue<MergeCursor> heap = new PriorityQueue<>(indexes.length);
+        for (int rank = 0; rank < indexes.length; rank++) {
+            Playlist playlist = playlists[rank];
+            indexed |= playlist.getSongIndex() != null;
+            totalSongs += playlist.getSize();
+            if (playlist.getLast() != null) {
+                SongNode first = playlist.getLast().getNext();
+                playlist.getLast().setNext(null);
+                heap.add(new MergeCursor(first, rank));
+            }
+        }
 
-            // Find the node that points to the highest popularity node
-            SongNode pointerToHighestPopularityNode = mergedLast;
-            while (pointerToHighestPopularityNode.getNext() != highestPopularityNode) {
-                pointerToHighestPopularityNode = pointerToHighestPopularityNode.getNext();
+        SongNode mergedFirst = null;
+        SongNode mergedLast = null;
+        while (!heap.isEmpty()) {
+            MergeCursor cursor = heap.poll();
+            if (mergedLast == null) {
+                mergedFirst = cursor.node;
+            } else {
+                mergedLast.setNext(cursor.node);
             }
+            mergedLast = cursor.node;
 
-            // Set the last node in the playlist to be the one that points to the highest popularity song
-            lowerPlaylist.setLast(pointerToHighestPopularityNode);
+            if (heap.isEmpty()) {
+                // Only this chain is left; it is appended as it is and ends at its playlist's last node
+                mergedLast = playlists[cursor.rank].getLast();
+                break;
+            }
+            cursor.node = cursor.node.getNext();
+            if (cursor.node != null) {
+                heap.add(cursor);
+            }
         }
 
-        lowerPlaylist.setSize(totalSongs);
-
+        Playlist merged = playlists[0];
+        if (mergedLast != null) {
+            mergedLast.setNext(mergedFirst);
+        }
+        merged.setLast(mergedLast);
+        merged.setSize(totalSongs);
+        mergedInto(merged, indexed, Arrays.copyOfRange(playlists, 1, playlists.length));
     }
 
+    /*
+     * Brings the indexes up to date once the songs of others have been 
+     * linked into the ring of merged, and empties the others. The merged 
+     * ring is song-indexed if any of the merged playlists was.
+     */
+    private void mergedInto(Playlist merged, boolean indexed, Playlist... others) {
+        if (merged instanceof IndexedPlaylist) {
+            ((IndexedPlaylist) merged).reindex();
+        }
+        if (indexed) {
+            merged.setSongIndex(new SongIndex(merged));
+        }
+        if (libraryIndex != null) {
+            libraryIndex.merged(merged);
+        }
+        for (Playlist other : others) {
+            other.setLast(null);
+            other.setSize(0);
+            if (other.getSongIndex() != null) {
+                other.getSongIndex().clear();
+            }
+        }
+    }
 
+    /*
+     * The next song of one playlist in an n-way merge. Cursors are ordered 
+     * by decreasing popularity, then by the position of their playlist.
+     */
+    private static class MergeCursor implements Comparable<MergeCursor> {
+        private SongNode  node;
+        private final int rank;  // position of the playlist among the merged ones
 
+        MergeCursor(SongNode node, int rank) {
+            this.node = node;
+            this.rank = rank;
+        }
 
-    
-
+        @Override
+        public int compareTo(MergeCursor other) {
+            int byPopularity = Integer.compare(other.node.getSong().getPopularity(), node.getSong().getPopularity());
+            return byPopularity != 0 ? byPopularity : Integer.compare(rank, other.rank);
+        }
+    }
 
     /**
-     * This method shuffles a specified playlist using the following procedure:
-     * 
-     * 1. Create a new playlist to store the shuffled playlist in.
+     * This method shuffles a specified playlist.
      * 
-     * 2. While the size of the original playlist is not 0, randomly generate a number 
-     * using StdRandom.uniformInt(1, size+1). Size contains the current number
-     * of items in the original playlist.
+     * The SongNode references are copied into an array once, permuted with a 
+     * Fisher-Yates pass driven by StdRandom, and the circle is relinked in a 
+     * single pass. StdRandom is seeded with SHUFFLE_SEED first, so the same 
+     * playlist always shuffles into the same order.
      * 
-     * 3. Remove the corresponding node from the original playlist and insert 
-     * it into the END of the new playlist (1 being the first node, 2 being the 
-     * second, etc). 
-     * 
-     * 4. Update the old playlist with the new shuffled playlist.
+     * If legacy shuffle is enabled (see setLegacyShuffle), the order matches 
+     * the original procedure exactly: while the original playlist is not 
+     * empty, generate StdRandom.uniformInt(size + 1) + 1, remove that node 
+     * (1 being the first node, wrapping around past the last one) and insert 
+     * it at the END of the new playlist.
      *    
-     * @param index the playlist to shuffle in songLibrary
+     * @param playlistIndex the playlist to shuffle in songLibrary
      */
+    public void shufflePlaylist(int playlistIndex) {
+        logPlaylists();
+        Playlist playlist = songLibrary.get(playlistIndex);
+        int size = playlist.getSize();
 
+        // Seed the random number generator
+        StdRandom.setSeed(SHUFFLE_SEED);
 
+        if (playlist.getLast() == null || size == 0) {
+            return; // Nothing to shuffle
+        }
 
-public void shufflePlaylist(int playlistIndex) {
-    // Get the playlist at the specified index
-    Playlist playlistToShuffle = songLibrary.get(playlistIndex);
-    int totalSongs = playlistToShuffle.getSize();
-
-    // Create a new playlist to store the shuffled playlist
-    Playlist shuffledPlaylist = new Playlist();
+        // Copy the nodes into an array, first song at index 0
+        SongNode[] nodes = new SongNode[size];
+        SongNode ptr = playlist.getLast().getNext();
+        for (int i = 0; i < size; i++) {
+            nodes[i] = ptr;
+            ptr = ptr.getNext();
+        }
 
-    // Get the size of the original playlist
-    int size = playlistToShuffle.getSize();
+        if (legacyShuffle) {
+            nodes = legacyShuffleOrder(nodes);
+        } else {
+            StdRandom.shuffle(nodes);
+        }
 
-    // Seed the random number generator
-    StdRandom.setSeed(2023);
+        // Relink the circle in the shuffled order
+        for (int i = 0; i < size - 1; i++) {
+            nodes[i].setNext(nodes[i + 1]);
+        }
+        nodes[size - 1].setNext(nodes[0]);
+        playlist.setLast(nodes[size - 1]);
+        reindex(playlist);
+        if (mutationLog != null) {
+            mutationLog.shufflePlaylist(playlistIndex, legacyShuffle);
+            checkpointIfDue();
+        }
+    }
 
-    // Shuffle the playlist
-    while (size > 0) {
-        // Generate a random number between 1 and size (inclusive)
-        int randomIndex = StdRandom.uniformInt(size + 1)+1;
+    // seed used by shufflePlaylist so shuffles are reproducible
+    private static final long SHUFFLE_SEED = 2023;
 
-        // Remove the corresponding node from the original playlist
-        SongNode current = playlistToShuffle.getLast().getNext(); // Start at the first song
-        SongNode prev = playlistToShuffle.getLast(); // Initialize prev to the last song
-        SongNode toMove = null; // Node to move to the shuffled playlist
+    // when true, shufflePlaylist reproduces the original remove-and-append sequence
+    private boolean legacyShuffle = false;
 
-        // If removing the first song
-        if (randomIndex == 1) {
-            toMove = current;
-            playlistToShuffle.getLast().setNext(current.getNext());
-            if (current == playlistToShuffle.getLast()) { // If removing the last remaining song
-                playlistToShuffle.setLast(null);
-            }
-        } else {
-            // Traverse to the song to remove
-            for (int i = 1; i < randomIndex; i++) {
-                prev = current;
-                current = current.getNext();
-            }
-            toMove = current;
-            if (current == playlistToShuffle.getLast()) { // If removing the last song
-                playlistToShuffle.setLast(prev);
-            }
-            prev.setNext(current.getNext());
+    /*
+     * Reproduces the order of the original shuffle, which repeatedly picked 
+     * position StdRandom.uniformInt(size + 1) + 1 among the remaining songs 
+     * (position size + 1 wraps around to the first song). Remaining songs 
+     * are tracked in a Fenwick tree, so each pick costs O(log n) instead of 
+     * a walk around the circle.
+     */
+    private static SongNode[] legacyShuffleOrder(SongNode[] nodes) {
+        int n = nodes.length;
+
+        // tree[i] counts the remaining songs in positions (i - lowbit(i), i]
+        int[] tree = new int[n + 1];
+        for (int i = 1; i <= n; i++) {
+            tree[i]++;
+            int parent = i + (i & -i);
+            if (parent <= n) tree[parent] += tree[i];
         }
+        int highBit = Integer.highestOneBit(n);
+
+        SongNode[] shuffled = new SongNode[n];
+        for (int size = n; size > 0; size--) {
+            int k = StdRandom.uniformInt(size + 1) + 1;
+            if (k > size) k = 1;
+
+            // find the k-th remaining position
+            int pos = 0;
+            for (int step = highBit; step > 0; step >>= 1) {
+                if (pos + step <= n && tree[pos + step] < k) {
+                    pos += step;
+                    k -= tree[pos];
+                }
+            }
+            pos++;
 
-        // Insert the removed node into the END of the new playlist
-        if (shuffledPlaylist.getLast() == null) {
-            shuffledPlaylist.setLast(toMove);
-        toMove.setNext(toMove); // ToMove points to itself as the next element in a circular linked list.
-        } else {
-            toMove.setNext(shuffledPlaylist.getLast().getNext()); // Set toMove to point to the first element in the list.
-            shuffledPlaylist.getLast().setNext(toMove); // Update the last element to point to toMove.
-            shuffledPlaylist.setLast(toMove); // Update the last element to be toMove.
+            shuffled[n - size] = nodes[pos - 1];
+            for (int i = pos; i <= n; i += i & -i) {
+                tree[i]--;
+            }
         }
-        System.out.println(randomIndex);
-        System.out.println(toMove.getSong());
-        // Update the size
-        size--;
+        return shuffled;
     }
-    shuffledPlaylist.setSize(totalSongs);
-    playlistToShuffle = shuffledPlaylist;
 
-    // Update the old playlist with the new shuffled playlist
-    songLibrary.set(playlistIndex, playlistToShuffle);
-}
+    /*
+     * Turns the original, order-compatible shuffle sequence on or off.
+     */
+    public void setLegacyShuffle(boolean legacy) { legacyShuffle = legacy; }
+    public boolean isLegacyShuffle() { return legacyShuffle; }
 
 
 
@@ -621,50 +1072,146 @@ public void shufflePlaylist(int playlistIndex) {
      */
     public void sortPlaylist ( int playlistIndex ) {
 
-        // WRITE YOUR CODE HERE
-        
+        logPlaylists();
+        Playlist playlist = songLibrary.get(playlistIndex);
+        int size = playlist.getSize();
+
+        if (playlist.getLast() == null || size < 2) {
+            return; // Nothing to sort
+        }
+
+        // Break the circle so the songs form a null-terminated list starting at the first song
+        SongNode first = playlist.getLast().getNext();
+        playlist.getLast().setNext(null);
+
+        // Large playlists are split into segments that are sorted in parallel
+        SongNode sorted;
+        if (size >= PARALLEL_SORT_THRESHOLD) {
+            sorted = ForkJoinPool.commonPool().invoke(new SortTask(first, size));
+        } else {
+            sorted = mergeSort(first, size);
+        }
+
+        // Walk to the new last song and close the circle again
+        SongNode last = sorted;
+        while (last.getNext() != null) {
+            last = last.getNext();
+        }
+        last.setNext(sorted);
+        playlist.setLast(last);
+        reindex(playlist);
+        if (mutationLog != null) {
+            mutationLog.sortPlaylist(playlistIndex);
+            checkpointIfDue();
+        }
+    }
+
+    // playlists with at least this many songs are sorted on the ForkJoinPool
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 14;
+
+    /*
+     * Sorts the null-terminated list of length size starting at head in 
+     * decreasing popularity order and returns the new head. Nodes are 
+     * relinked, no Song objects are copied.
+     */
+    private static SongNode mergeSort(SongNode head, int size) {
+        if (size < 2) {
+            return head;
+        }
+        int half = size / 2;
+        SongNode right = split(head, half);
+        return merge(mergeSort(head, half), mergeSort(right, size - half));
+    }
+
+    /*
+     * Cuts the list after its first count nodes and returns the head of 
+     * the remaining part.
+     */
+    private static SongNode split(SongNode head, int count) {
+        SongNode ptr = head;
+        for (int i = 1; i < count; i++) {
+            ptr = ptr.getNext();
+        }
+        SongNode rest = ptr.getNext();
+        ptr.setNext(null);
+        return rest;
+    }
+
+    /*
+     * Merges two null-terminated lists sorted in decreasing popularity order.
+     * On equal popularity the song from left comes first, which keeps the 
+     * sort stable.
+     */
+    private static SongNode merge(SongNode left, SongNode right) {
+        SongNode dummy = new SongNode();
+        SongNode tail = dummy;
+        while (left != null && right != null) {
+            if (left.getSong().getPopularity() >= right.getSong().getPopularity()) {
+                tail.setNext(left);
+                left = left.getNext();
+            } else {
+                tail.setNext(right);
+                right = right.getNext();
+            }
+            tail = tail.getNext();
+        }
+        tail.setNext(left != null ? left : right);
+        return dummy.getNext();
+    }
+
+    /*
+     * Sorts one segment of a playlist, forking the left half and sorting 
+     * the right half in the current worker. Segments below the threshold 
+     * are sorted sequentially.
+     */
+    private static class SortTask extends RecursiveTask<SongNode> {
+        private static final long serialVersionUID = 1L;
+
+        private final SongNode head;
+        private final int      size;
+
+        SortTask(SongNode head, int size) {
+            this.head = head;
+            this.size = size;
+        }
+
+        @Override
+        protected SongNode compute() {
+            if (size < PARALLEL_SORT_THRESHOLD) {
+                return mergeSort(head, size);
+            }
+            int half = size / 2;
+            SongNode right = split(head, half);
+            SortTask leftTask = new SortTask(head, half);
+            leftTask.fork();
+            SongNode sortedRight = new SortTask(right, size - half).compute();
+            return merge(leftTask.join(), sortedRight);
+        }
     }
 
     /**
-     * ****DO NOT**** UPDATE THIS METHOD
      * Plays playlist by index; can use this method to debug.
      * 
+     * Playback goes through a PlaylistPlayer, which reads the next song 
+     * while the current one plays so there is no gap between songs.
+     * 
      * @param playlistIndex the playlist to print
      * @param repeats number of times to repeat playlist
-     * @throws InterruptedException
      */
     public void playPlaylist(int playlistIndex, int repeats) {
-        /* DO NOT UPDATE THIS METHOD */
-
-        final String NO_SONG_MSG = " has no link to a song! Playing next...";
-        if (songLibrary.get(playlistIndex).getLast() == null) {
-            StdOut.println("Nothing to play.");
-            return;
-        }
-
-        SongNode ptr = songLibrary.get(playlistIndex).getLast().getNext(), first = ptr;
-
-        do {
-            StdOut.print("\r" + ptr.getSong().toString());
-            if (ptr.getSong().getLink() != null) {
-                StdAudio.play(ptr.getSong().getLink());
-                for (int ii = 0; ii < ptr.getSong().toString().length(); ii++)
-                    StdOut.print("\b \b");
-            }
-            else {
-                StdOut.print(NO_SONG_MSG);
-                try {
-                    Thread.sleep(2000);
-                } catch(InterruptedException ex) {
-                    ex.printStackTrace();
-                }
-                for (int ii = 0; ii < NO_SONG_MSG.length(); ii++)
-                    StdOut.print("\b \b");
-            }
+        new PlaylistPlayer().play(songLibrary.get(playlistIndex), repeats);
+    }
 
-            ptr = ptr.getNext();
-            if (ptr == first) repeats--;
-        } while (ptr != first || repeats > 0);
+    /**
+     * Decodes the audio of every song in a playlist, several songs at a 
+     * time, with StdAudio.read().
+     * 
+     * @param playlistIndex the playlist to decode
+     * @return the samples of each song in playlist order, null for songs 
+     * without a link
+     */
+    public double[][] decodePlaylist(int playlistIndex) {
+        return new PlaylistDecoder().decodeAll(songLibrary.get(playlistIndex));
     }
 
     /**
@@ -699,6 +1246,316 @@ public void shufflePlaylist(int playlistIndex) {
         }
     }
 
+    /**
+     * Saves every playlist of the library into a binary snapshot file, which 
+     * loadSnapshot can read back much faster than the original csv files.
+     * 
+     * @param filename the snapshot file to write
+     */
+    public void saveSnapshot(String filename) {
+        PlaylistSnapshot.save(songLibrary == null ? new ArrayList<Playlist>() : songLibrary, filename);
+    }
+
+    /**
+     * Replaces the library with the playlists stored in a snapshot file 
+     * written by saveSnapshot.
+     * 
+     * @param filename the snapshot file to read
+     */
+    public void loadSnapshot(String filename) {
+        songLibrary = PlaylistSnapshot.load(filename);
+        if (indexSongs) {
+            setIndexSongs(true);
+        }
+        logPlaylists();
+    }
+
+    /**
+     * Writes the playlist at playlistIndex to a csv file, which 
+     * createPlaylist reads back as the same songs in the same order.
+     * 
+     * @param playlistIndex the playlist to export
+     * @param filename the csv file, replaced if it exists
+     * @throws IllegalArgumentException if the file cannot be written, or a 
+     * song holds a comma or a line break (see CsvPlaylistWriter)
+     */
+    public void exportPlaylist(int playlistIndex, String filename) {
+        csvWriter().write(songLibrary.get(playlistIndex), filename);
+    }
+
+    /**
+     * Writes the playlist at index i to filenames[i], for every playlist 
+     * that has changed since it was last exported to that file. Playlists 
+     * are only tracked while they are changed through this library; editing 
+     * a Song through its setters makes the playlists holding it count as 
+     * changed.
+     * 
+     * @param filenames one csv file per playlist, in library order
+     * @return the number of playlists written
+     * @throws IllegalArgumentException if there is not one filename per 
+     * playlist, or a file cannot be written (see exportPlaylist)
+     */
+    public int exportPlaylists(String[] filenames) {
+        int size = songLibrary == null ? 0 : songLibrary.size();
+        if (filenames.length != size) {
+            throw new IllegalArgumentException("expected " + size + " filenames but got " + filenames.length);
+        }
+        int written = 0;
+        for (int i = 0; i < size; i++) {
+            if (exportIfChanged(i, filenames[i])) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // writes one playlist for exportPlaylists, unless it has not changed
+    boolean exportIfChanged(int playlistIndex, String filename) {
+        return csvWriter().writeIfChanged(songLibrary.get(playlistIndex), filename);
+    }
+
+    private CsvPlaylistWriter csvWriter() {
+        if (csvWriter == null) {
+            csvWriter = new CsvPlaylistWriter();
+        }
+        return csvWriter;
+    }
+
+    // remembers what has been exported, created on the first export
+    private CsvPlaylistWriter csvWriter;
+
+    /**
+     * Recovers the library after a restart or a crash and logs every change
+     * made to it from then on, so it can be recovered again.
+     *
+     * If snapshotFile exists, the library is replaced by the playlists
+     * saved in it and the changes in logFile are replayed on top of them;
+     * otherwise the library is kept as it is. Either way a checkpoint is
+     * then taken: the library is saved to snapshotFile and logFile starts
+     * over, empty.
+     *
+     * insertSong, removeSong, removeSongs, reversePlaylist, shufflePlaylist,
+     * sortPlaylist and mergePlaylists append a record to the log after
+     * they change the library. Playlists added or removed with addPlaylist, 
+     * removePlaylist or setPlaylists are logged with the next of those 
+     * records, or by checkpoint and closeLog (a ConcurrentPlaylistLibrary 
+     * logs them at once). Until then they are not durable: a crash right 
+     * after addPlaylist or removePlaylist recovers the library without 
+     * that change. Once the log grows past getCheckpointBytes() a 
+     * checkpoint is taken, which bounds the time recovery takes. Replayed 
+     * playlists are plain playlists, even if indexPlaylist had indexed them.
+     *
+     * @param snapshotFile the snapshot the log starts from
+     * @param logFile the log of the changes made after the snapshot
+     * @param syncEvery the most changes made before they are forced to
+     * disk: 1 to force every change before its method returns, 0 to leave
+     * it to syncMillis and the operating system (see MutationLog)
+     * @param syncMillis the most milliseconds a change waits before it is
+     * forced to disk, 0 for no limit
+     * @throws IllegalArgumentException if a file cannot be read or written
+     */
+    public void openLog(String snapshotFile, String logFile, int syncEvery, long syncMillis) {
+        closeLog();
+        if (Files.exists(Paths.get(snapshotFile))) {
+            loadSnapshot(snapshotFile);
+            MutationLog.replay(logFile, MutationLog.checksum(snapshotFile), this);
+        }
+        this.snapshotFile = snapshotFile;
+        mutationLog = new MutationLog(logFile, saveCheckpoint(), syncEvery, syncMillis);
+    }
+
+    /**
+     * Saves the library to the snapshot file and starts the log over. The
+     * new snapshot replaces the old one in one step, so a crash at any
+     * point leaves a snapshot and a log that recover the library.
+     *
+     * @throws IllegalStateException if no log is open
+     * @throws IllegalArgumentException if a file cannot be written
+     */
+    public void checkpoint() {
+        if (mutationLog == null) {
+            throw new IllegalStateException("mutation log is not open, see openLog");
+        }
+        // the old log has to be complete until the new snapshot is in place
+        mutationLog.sync();
+        mutationLog.restart(saveCheckpoint());
+    }
+
+    /**
+     * Forces the changes logged so far to disk and stops logging. Closing
+     * when no log is open has no effect.
+     */
+    public void closeLog() {
+        if (mutationLog == null) {
+            return;
+        }
+        logPlaylists();
+        mutationLog.close();
+        mutationLog = null;
+        logged = null;
+    }
+
+    public boolean isLogging() { return mutationLog != null; }
+
+    /*
+     * Sets the size in bytes past which the log is replaced by a checkpoint.
+     */
+    public void setCheckpointBytes(long bytes) { checkpointBytes = bytes; }
+    public long getCheckpointBytes() { return checkpointBytes; }
+
+    // write-ahead log of the changes made since the snapshot, null if not logging
+    private MutationLog mutationLog;
+    private String snapshotFile;
+    private long checkpointBytes = 64L << 20;
+
+    // the playlists as the log has them, by index; null if not logging
+    private Playlist[] logged;
+    private final PlaylistsStamp loggedStamp = new PlaylistsStamp();  // the list logged was taken from
+
+    /*
+     * Logs the playlists added to or removed from the library since the last
+     * record, which addPlaylist, removePlaylist and setPlaylists do not log
+     * themselves. Removals are logged from the highest index down, then
+     * additions from the lowest index up. When the library has been
+     * replaced or reordered instead, a checkpoint is cheaper and is taken.
+     */
+    void logPlaylists() {
+        if (mutationLog == null || loggedStamp.isCurrent(this)) {
+            return;
+        }
+        int n = songLibrary == null ? 0 : songLibrary.size();
+        if (n == logged.length) {
+            int i = 0;
+            while (i < n && songLibrary.get(i) == logged[i]) i++;
+            if (i == n) {
+                loggedStamp.update(this);
+                return;
+            }
+        }
+
+        IdentityHashMap<Playlist, Integer> current = new IdentityHashMap<>();
+        for (int i = 0; i < n; i++) {
+            current.put(songLibrary.get(i), i);
+        }
+        IdentityHashMap<Playlist, Integer> kept = new IdentityHashMap<>();
+        int previous = -1;
+        boolean reordered = current.size() < n;
+        for (Playlist playlist : logged) {
+            Integer index = current.get(playlist);
+            if (index != null) {
+                reordered |= index < previous || kept.put(playlist, index) != null;
+                previous = index;
+            }
+        }
+        if (reordered || (kept.isEmpty() && logged.length > 0)) {
+            checkpoint();
+            return;
+        }
+
+        for (int i = logged.length - 1; i >= 0; i--) {
+            if (!kept.containsKey(logged[i])) mutationLog.removePlaylist(i);
+        }
+        for (int i = 0; i < n; i++) {
+            if (!kept.containsKey(songLibrary.get(i))) mutationLog.addPlaylist(i, songLibrary.get(i));
+        }
+        logged = songLibrary.toArray(new Playlist[0]);
+        loggedStamp.update(this);
+    }
+
+    // logs a merge before its playlists are removed, so the removals are not logged again
+    private void logMerge(int... indexes) {
+        if (mutationLog == null) {
+            return;
+        }
+        mutationLog.mergePlaylists(indexes);
+        ArrayList<Playlist> remaining = new ArrayList<>(Arrays.asList(logged));
+        for (int i = indexes.length - 1; i > 0; i--) {
+            remaining.remove(indexes[i]);
+        }
+        logged = remaining.toArray(new Playlist[0]);
+    }
+
+    /*
+     * Logs a mergeSongs step taken on its own. Its playlists are still in 
+     * the library, so the playlists as the log has them do not change; 
+     * their removal is logged by logPlaylists once it is done.
+     */
+    void logMergeSongs(int... indexes) {
+        if (mutationLog != null) {
+            mutationLog.mergeSongs(indexes);
+            checkpointIfDue();
+        }
+    }
+
+    // saves the library to the snapshot file and returns its checksum
+    private long saveCheckpoint() {
+        String temp = snapshotFile + ".tmp";
+        PlaylistSnapshot.save(songLibrary == null ? new ArrayList<Playlist>() : songLibrary, temp);
+        MutationLog.replace(temp, snapshotFile);
+        logged = songLibrary == null ? new Playlist[0] : songLibrary.toArray(new Playlist[0]);
+        loggedStamp.update(this);
+        return MutationLog.checksum(snapshotFile);
+    }
+
+    private void checkpointIfDue() {
+        if (mutationLog != null && mutationLog.size() >= checkpointBytes) {
+            checkpoint();
+        }
+    }
+
+    /*
+     * Puts a playlist replayed from the log back into the library.
+     */
+    void restorePlaylist(int playlistIndex, Playlist playlist) {
+        if (songLibrary == null) {
+            songLibrary = new ArrayList<Playlist>();
+        }
+        if (indexSongs) {
+            playlist.setSongIndex(new SongIndex(playlist));
+        }
+        songLibrary.add(Math.min(playlistIndex, songLibrary.size()), playlist);
+        playlistAdded();
+    }
+
+    /*
+     * Counts the playlists put into the list of playlists by this library.
+     * removePlaylist only shrinks the list, and setPlaylists and loadSnapshot
+     * replace it, so the list, its size and this count tell together whether
+     * the playlists may have changed; see PlaylistsStamp.
+     */
+    private final AtomicInteger playlistsAdded = new AtomicInteger();
+
+    // called by every method that puts a playlist into the list
+    void playlistAdded() {
+        playlistsAdded.incrementAndGet();
+    }
+
+    /*
+     * The list of playlists of a library as it was at the last update().
+     * isCurrent() takes O(1) and is false if the library has since replaced
+     * the list or put a playlist into it, or if its size has changed. A
+     * change made to the list from getPlaylists() directly, without going
+     * through the library, is only seen if it changes the size.
+     */
+    static final class PlaylistsStamp {
+        private List<Playlist> list;
+        private int            size = -1;
+        private int            added;
+
+        boolean isCurrent(PlaylistLibrary library) {
+            List<Playlist> current = library.songLibrary;
+            return current == list && (current == null ? 0 : current.size()) == size
+                    && library.playlistsAdded.get() == added;
+        }
+
+        void update(PlaylistLibrary library) {
+            // read the count first, so a playlist added meanwhile is seen next time
+            added = library.playlistsAdded.get();
+            list = library.songLibrary;
+            size = list == null ? 0 : list.size();
+        }
+    }
+
     /*
      * Used to get and set objects.
      * DO NOT edit.
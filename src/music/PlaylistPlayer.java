@@ -0,0 +1,212 @@
+package music;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * This class plays a playlist without gaps between songs.
+ *
+ * A background thread walks the circular linked list and reads the audio
+ * of each song ahead of playback, handing it over in chunks through a
+ * lock-free SpscRing. The calling thread writes the chunks to a single
+ * SourceDataLine that stays open from one song to the next; a new line is
+ * only opened when a song's audio format differs from the previous one.
+ * While one song plays, the next one is already being read.
+ *
+ * The songs are played in the same order as PlaylistLibrary.playPlaylist
+ * always did: starting from getLast().getNext() and going around the circle
+ * repeats times, with a two second pause for songs that have no link.
+ */
+
+public class PlaylistPlayer {
+    private static final int    CHUNK_BYTES     = 64 * 1024;  // bytes of audio per chunk
+    private static final int    PREFETCH_CHUNKS = 32;         // chunks read ahead of playback
+    private static final String NO_SONG_MSG     = " has no link to a song! Playing next...";
+
+    /*
+     * A unit of work handed from the reader thread to the player
+     */
+    private static class Chunk {
+        static final Chunk DONE = new Chunk(null, false, null, null, 0, null);
+
+        final Song             song;
+        final boolean          start;    // first chunk of the song
+        final AudioFormat      format;   // null for a song without a link
+        final byte[]           data;
+        final int              length;
+        final RuntimeException error;    // set if reading the song failed
+
+        Chunk(Song song, boolean start, AudioFormat format, byte[] data, int length, RuntimeException error) {
+            this.song = song;
+            this.start = start;
+            this.format = format;
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Plays the playlist repeats times and returns when the last song has
+     * finished playing.
+     *
+     * @param playlist the playlist to play
+     * @param repeats number of times to play the playlist (at least 1)
+     * @throws IllegalArgumentException if a song's link cannot be played
+     */
+    public void play(Playlist playlist, int repeats) {
+        if (playlist.getLast() == null) {
+            StdOut.println("Nothing to play.");
+            return;
+        }
+
+        SpscRing<Chunk> ring = new SpscRing<>(PREFETCH_CHUNKS);
+        SongNode first = playlist.getLast().getNext();
+
+        Thread reader = new Thread(() -> readAhead(first, repeats, ring), "playlist-prefetch");
+        reader.setDaemon(true);
+        reader.start();
+
+        SourceDataLine line = null;
+        int shown = 0;          // characters of the current song printed on the console
+        boolean skip = false;   // true while dropping a song whose line could not be opened
+        try {
+            while (true) {
+                Chunk chunk = ring.take();
+                if (chunk == Chunk.DONE) {
+                    break;
+                }
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+
+                if (chunk.start) {
+                    erase(shown);
+                    String title = chunk.song.toString();
+                    StdOut.print("\r" + title);
+                    shown = title.length();
+                    skip = false;
+                }
+
+                if (chunk.format == null) {
+                    // no link: let the previous song finish, then pause
+                    if (line != null) line.drain();
+                    StdOut.print(NO_SONG_MSG);
+                    Thread.sleep(2000);
+                    erase(NO_SONG_MSG.length());
+                    shown = 0;
+                    continue;
+                }
+
+                if (skip) {
+                    continue;
+                }
+                if (line == null || !line.getFormat().matches(chunk.format)) {
+                    if (line != null) {
+                        line.drain();
+                        line.close();
+                        line = null;
+                    }
+                    try {
+                        line = openLine(chunk.format);
+                    }
+                    catch (LineUnavailableException e) {
+                        e.printStackTrace();
+                        skip = true;
+                        continue;
+                    }
+                }
+                line.write(chunk.data, 0, chunk.length);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            reader.interrupt();
+            if (line != null) {
+                line.drain();
+                line.close();
+            }
+            erase(shown);
+        }
+    }
+
+    /*
+     * Opens and starts a line for the given format
+     */
+    SourceDataLine openLine(AudioFormat format) throws LineUnavailableException {
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+        line.open(format);
+        line.start();
+        return line;
+    }
+
+    /*
+     * Runs on the reader thread: walks the playlist like playPlaylist does
+     * and puts the audio of every song into the ring, then Chunk.DONE.
+     */
+    private void readAhead(SongNode first, int repeats, SpscRing<Chunk> ring) {
+        try {
+            try {
+                SongNode ptr = first;
+                do {
+                    readSong(ptr.getSong(), ring);
+                    ptr = ptr.getNext();
+                    if (ptr == first) repeats--;
+                } while (ptr != first || repeats > 0);
+            }
+            catch (RuntimeException e) {
+                ring.put(new Chunk(null, false, null, null, 0, e));
+                return;
+            }
+            ring.put(Chunk.DONE);
+        }
+        catch (InterruptedException e) {
+            // the player stopped, nothing left to do
+        }
+    }
+
+    private void readSong(Song song, SpscRing<Chunk> ring) throws InterruptedException {
+        String link = song.getLink();
+        if (link == null) {
+            ring.put(new Chunk(song, true, null, null, 0, null));
+            return;
+        }
+
+        try (AudioInputStream ais = StdAudio.getAudioInputStreamFromFile(link)) {
+            AudioFormat format = ais.getFormat();
+            boolean start = true;
+            while (true) {
+                byte[] data = new byte[CHUNK_BYTES];
+                int length = 0;
+                int count;
+                while (length < data.length && (count = ais.read(data, length, data.length - length)) != -1) {
+                    length += count;
+                }
+                if (length > 0 || start) {
+                    ring.put(new Chunk(song, start, format, data, length, null));
+                    start = false;
+                }
+                if (length < data.length) {
+                    return; // end of the file
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not read '" + link + "'", e);
+        }
+    }
+
+    private static void erase(int characters) {
+        for (int ii = 0; ii < characters; ii++)
+            StdOut.print("\b \b");
+    }
+}
@@ -0,0 +1,219 @@
+package music;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * This class saves and loads a whole library of playlists as a compact
+ * binary snapshot, so a library does not have to be rebuilt from its csv
+ * files on every start.
+ *
+ * Layout of a snapshot (all integers are big endian):
+ *
+ *      magic "PLIB", version
+ *      string count, then for each string: byte length, UTF-8 bytes
+ *      song count, then for each song: name id, artist id, link id, year, popularity
+ *      playlist count, then for each playlist: size, then size song ids
+ *
+ * Links are stored as file names, without their "songs/<year>/" directory.
+ * Song names, artists and links are stored once in the string table and
+ * referenced by id (-1 for null). Every song record has the same width, and
+ * a Song object that appears in several playlists is stored once. The first
+ * song id of a playlist is the first song of the circular linked list.
+ *
+ * Loading maps the file and reads it front to back exactly once.
+ */
+
+public class PlaylistSnapshot {
+    private static final int MAGIC   = 0x504C4942;  // "PLIB"
+    private static final int VERSION = 2;
+
+    private PlaylistSnapshot() {
+        // can not instantiate
+    }
+
+    /**
+     * Saves the playlists to filename, replacing the file if it exists.
+     *
+     * @param playlists the playlists of a library, in library order
+     * @param filename the snapshot file
+     * @throws IllegalArgumentException if unable to save {@code filename}
+     */
+    public static void save(List<Playlist> playlists, String filename) {
+        HashMap<String, Integer> stringIds = new HashMap<>();
+        ArrayList<String> strings = new ArrayList<>();
+        IdentityHashMap<Song, Integer> songIds = new IdentityHashMap<>();
+        ArrayList<Song> songs = new ArrayList<>();
+
+        // number the distinct songs and strings in the order they are met
+        for (Playlist playlist : playlists) {
+            SongNode ptr = playlist.getLast();
+            for (int i = 0; i < playlist.getSize(); i++) {
+                ptr = ptr.getNext();
+                Song song = ptr.getSong();
+                if (songIds.putIfAbsent(song, songs.size()) == null) {
+                    songs.add(song);
+                    stringId(song.getSongName(), stringIds, strings);
+                    stringId(song.getArtist(), stringIds, strings);
+                    stringId(song.getFileName(), stringIds, strings);
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            out.writeInt(songs.size());
+            for (Song song : songs) {
+                out.writeInt(stringId(song.getSongName(), stringIds, strings));
+                out.writeInt(stringId(song.getArtist(), stringIds, strings));
+                out.writeInt(stringId(song.getFileName(), stringIds, strings));
+                out.writeInt(song.getYear());
+                out.writeInt(song.getPopularity());
+            }
+
+            out.writeInt(playlists.size());
+            for (Playlist playlist : playlists) {
+                out.writeInt(playlist.getSize());
+                SongNode ptr = playlist.getLast();
+                for (int i = 0; i < playlist.getSize(); i++) {
+                    ptr = ptr.getNext();
+                    out.writeInt(songIds.get(ptr.getSong()));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save snapshot '" + filename + "'", e);
+        }
+    }
+
+    /**
+     * Loads the playlists saved in filename.
+     *
+     * @param filename the snapshot file
+     * @return the playlists, in library order
+     * @throws IllegalArgumentException if unable to read {@code filename} or
+     * if it is not a snapshot of a supported version
+     */
+    public static ArrayList<Playlist> load(String filename) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("snapshot '" + filename + "' is larger than 2 GB");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (in.remaining() < 8 || in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("'" + filename + "' is not a playlist snapshot");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported snapshot version " + version + " in '" + filename + "'");
+            }
+
+            String[] strings = new String[count(in, 4)];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = count(in, 1);
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, 2 * scratch.length)];
+                }
+                in.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+
+            Song[] songs = new Song[count(in, 20)];
+            for (int i = 0; i < songs.length; i++) {
+                String songName = string(strings, in.getInt());
+                String artist = string(strings, in.getInt());
+                String link = string(strings, in.getInt());
+                int year = in.getInt();
+                int popularity = in.getInt();
+
+                songs[i] = new Song(songName, artist, year, popularity, link);
+            }
+
+            int playlistCount = count(in, 4);
+            ArrayList<Playlist> playlists = new ArrayList<>(playlistCount);
+            for (int p = 0; p < playlistCount; p++) {
+                int size = count(in, 4);
+                SongNode first = null;
+                SongNode last = null;
+                for (int i = 0; i < size; i++) {
+                    SongNode node = new SongNode(songs[in.getInt()], null);
+                    if (first == null) {
+                        first = node;
+                    } else {
+                        last.setNext(node);
+                    }
+                    last = node;
+                }
+                if (last != null) {
+                    last.setNext(first);
+                }
+                playlists.add(new Playlist(last, size));
+            }
+            return playlists;
+        }
+        catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("could not read snapshot '" + filename + "'", e);
+        }
+    }
+
+    /*
+     * Reads a count of items of at least bytesEach bytes each. A corrupt
+     * count that the rest of the file can not hold is rejected before
+     * anything is allocated for it.
+     */
+    private static int count(MappedByteBuffer in, int bytesEach) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / bytesEach) {
+            throw new IndexOutOfBoundsException("count " + count + " at position " + (in.position() - 4));
+        }
+        return count;
+    }
+
+    // returns the id of s in the string table, adding it if necessary
+    private static int stringId(String s, HashMap<String, Integer> ids, ArrayList<String> strings) {
+        if (s == null) {
+            return -1;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    // returns the String with the given id, -1 being the id of null
+    private static String string(String[] strings, int id) {
+        if (id == -1) {
+            return null;
+        }
+        if (id < 0 || id >= strings.length) {
+            throw new IndexOutOfBoundsException("string id " + id);
+        }
+        return strings[id];
+    }
+}
@@ -13,26 +13,29 @@ public class Song {
     private String          artist;
     private int             year;
     private int             popularity;
-    private String          link;
-    private final String    DIRECTORY = "songs/";
+    private String          link;  // file name only, getLink() adds the directory
+    private int             hash;  // cached hashCode(), 0 if not computed yet
+    private int             edits;  // calls to the setters of this Song, see edits()
+
+    static final String     DIRECTORY = "songs/";
 
     /*
-     * Constructor
+     * Constructor, the Strings are interned through SongStrings
      */
     public Song(String songName, String artist, int year, int popularity, String link) {
-        this.songName = songName;
-        this.artist = artist;
+        this.songName = SongStrings.intern(songName);
+        this.artist = SongStrings.intern(artist);
         this.year = year;
         this.popularity = popularity;
-        this.link = DIRECTORY + year + "/" + link;
+        this.link = SongStrings.intern(link);
     }
 
     /*
      * Constructor with link of the song set to null
      */
     public Song(String songName, String artist, int year, int popularity) {
-        this.songName = songName;
-        this.artist = artist;
+        this.songName = SongStrings.intern(songName);
+        this.artist = SongStrings.intern(artist);
         this.year = year;
         this.popularity = popularity;
         this.link = null;
@@ -57,21 +60,29 @@ public class Song {
     }
 
     /*
-     * HashCode method
+     * HashCode method, the result is cached until a field it depends on changes
      */
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((songName == null) ? 0 : songName.hashCode());
-        result = prime * result + ((artist == null) ? 0 : artist.hashCode());
-        result = prime * result + year;
-        result = prime * result + popularity;
+        int result = hash;
+        if (result == 0) {
+            final int prime = 31;
+            result = 1;
+            result = prime * result + ((songName == null) ? 0 : songName.hashCode());
+            result = prime * result + ((artist == null) ? 0 : artist.hashCode());
+            result = prime * result + year;
+            result = prime * result + popularity;
+            hash = result;
+        }
         return result;
     }
 
     /*
      * Equals method (used for removeSong())
+     * 
+     * Songs with different hash codes or numbers are rejected before any 
+     * String is compared. Interned Strings are usually the same instance, 
+     * which String.equals checks first.
      */
     @Override
     public boolean equals(Object obj) {
@@ -82,6 +93,10 @@ public class Song {
         if (getClass() != obj.getClass())
             return false;
         Song other = (Song) obj;
+        if (year != other.year || popularity != other.popularity)
+            return false;
+        if (hashCode() != other.hashCode())
+            return false;
         if (songName == null) {
             if (other.songName != null)
                 return false;
@@ -92,29 +107,36 @@ public class Song {
                 return false;
         } else if (!artist.equals(other.artist))
             return false;
-        if (year != other.year)
-            return false;
-        if (popularity != other.popularity)
-            return false;
         return true;
     }
 
     /* Getter and setter methods */
     public String getSongName() { return songName; }
-    public void setSongName(String s) { songName = s; }
+    public void setSongName(String s) { songName = SongStrings.intern(s); hash = 0; edits++; }
 
     public String getArtist() { return artist; }
-    public void setArtist(String art) { artist = art; }
+    public void setArtist(String art) { artist = SongStrings.intern(art); hash = 0; edits++; }
 
     public int getYear() { return year; }
-    public void setYear(int y) { year = y; }
+    public void setYear(int y) { year = y; hash = 0; edits++; }
 
     public int getPopularity() { return popularity; }
-    public void setPopularity(int p) { popularity = p; }
+    public void setPopularity(int p) { popularity = p; hash = 0; edits++; }
 
-    public String getLink() { return link; }
-    public void setLink(String l) { link = DIRECTORY + year + "/" + l; }
+    public String getLink() { return link == null ? null : SongStrings.directory(year) + link; }
+    public void setLink(String l) { link = SongStrings.intern(l); edits++; }
 
     public String getDirectory() { return DIRECTORY; }
 
+    /*
+     * Returns the file name of the link without its directory
+     */
+    String getFileName() { return link; }
+
+    /*
+     * Returns how many times a setter has been called on this Song, so that
+     * a copy of its playlist can tell whether it may have been edited
+     */
+    int edits() { return edits; }
+
 }
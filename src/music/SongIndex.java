@@ -0,0 +1,142 @@
+package music;
+
+import java.util.HashMap;
+
+/**
+ * This class represents a hash index over the songs of one playlist.
+ *
+ * Each distinct Song (compared with .equals()) maps to the SongNode that
+ * comes before one of its occurrences in the Circular Linked list, together
+ * with the number of occurrences. Knowing the predecessor is what allows a
+ * song to be unlinked from a singly linked ring in O(1).
+ *
+ * Every predecessor stored in the index is a node of the ring whose next
+ * node holds the indexed song, or null when no occurrence is known (which
+ * only happens for songs that occur more than once).
+ *
+ * The index stays correct as long as every change to the ring is reported
+ * through added() and removed(). Operations that rewire the whole ring
+ * (reverse, shuffle, sort, merge) call rebuild() instead.
+ */
+
+public class SongIndex {
+    private final HashMap<Song, Entry> entries = new HashMap<>();
+
+    /*
+     * Constructor, indexes every song of the playlist
+     */
+    public SongIndex(Playlist playlist) {
+        rebuild(playlist);
+    }
+
+    /**
+     * Discards the index and rebuilds it from the playlist's ring in O(n).
+     *
+     * @param playlist the playlist this index belongs to
+     */
+    public void rebuild(Playlist playlist) {
+        entries.clear();
+        SongNode prev = playlist.getLast();
+        if (prev == null) {
+            return;
+        }
+        for (int i = 0; i < playlist.getSize(); i++) {
+            SongNode node = prev.getNext();
+            Entry entry = entries.get(node.getSong());
+            if (entry == null) {
+                entries.put(node.getSong(), new Entry(prev));
+            } else {
+                entry.count++;
+            }
+            prev = node;
+        }
+    }
+
+    /**
+     * Returns how many times song occurs in the playlist.
+     *
+     * @param song the song to look up
+     * @return the number of occurrences, 0 if the song is not in the playlist
+     */
+    public int count(Song song) {
+        Entry entry = entries.get(song);
+        return entry == null ? 0 : entry.count;
+    }
+
+    /**
+     * Returns the SongNode right before an occurrence of song. If the song
+     * occurs more than once, which occurrence is unspecified.
+     *
+     * @param song the song to look up
+     * @return the predecessor node, or null if it is not known and the
+     * caller has to search the ring
+     */
+    public SongNode predecessorOf(Song song) {
+        Entry entry = entries.get(song);
+        return entry == null ? null : entry.pred;
+    }
+
+    /**
+     * Records that node has just been linked in right after pred.
+     *
+     * @param pred the node before the new node (the new node itself if it is
+     * the only one in the ring)
+     * @param node the new node
+     */
+    public void added(SongNode pred, SongNode node) {
+        // the old successor of pred now comes after node
+        Entry next = entries.get(node.getNext().getSong());
+        if (next != null && next.pred == pred) {
+            next.pred = node;
+        }
+
+        Entry entry = entries.get(node.getSong());
+        if (entry == null) {
+            entries.put(node.getSong(), new Entry(pred));
+        } else {
+            entry.count++;
+        }
+    }
+
+    /**
+     * Records that node has just been unlinked from right after pred.
+     *
+     * @param pred the node that came before the removed node
+     * @param node the removed node
+     */
+    public void removed(SongNode pred, SongNode node) {
+        // the song after node is now preceded by pred
+        Entry next = entries.get(pred.getNext().getSong());
+        if (next != null && next.pred == node) {
+            next.pred = pred;
+        }
+
+        Entry entry = entries.get(node.getSong());
+        if (entry == null) {
+            return;
+        }
+        if (--entry.count == 0) {
+            entries.remove(node.getSong());
+        } else if (entry.pred == pred && entry != next) {
+            // it pointed to the removed occurrence; another one is still 
+            // in the ring but its position is unknown
+            entry.pred = null;
+        }
+    }
+
+    /**
+     * Empties the index, for a playlist whose last song was removed.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private SongNode pred;       // node before one occurrence, null if unknown
+        private int      count = 1;  // number of occurrences in the playlist
+
+        Entry(SongNode pred) {
+            this.pred = pred;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package music;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class interns the Strings held by Song objects.
+ *
+ * Large libraries repeat the same artists, and the same song usually shows
+ * up in several playlists. Every song name, artist and link file name goes
+ * through intern(), so equal Strings are stored once no matter how many
+ * Song objects refer to them. The pool is shared by all threads.
+ *
+ * The pool only holds its Strings weakly: once no Song refers to a String
+ * any more, the garbage collector drops it from the pool as well, so the
+ * pool never grows past the Strings that are still in use. It is split into
+ * stripes by hash code, each locked on its own.
+ *
+ * The directory part of a link ("songs/2010/") is not stored per song at
+ * all: Song keeps only the file name and getLink() adds the directory
+ * returned by directory(year) on every call, so the full link is never
+ * kept per song.
+ */
+
+public final class SongStrings {
+    private static final int STRIPES = 64;  // a power of two
+
+    // the key refers to the String weakly, and so does the value
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final WeakHashMap<String, WeakReference<String>>[] pool = new WeakHashMap[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            pool[i] = new WeakHashMap<>();
+        }
+    }
+
+    // "songs/<year>/" for the years seen so far
+    private static final ConcurrentHashMap<Integer, String> directories = new ConcurrentHashMap<>();
+
+    private SongStrings() {
+        // can not instantiate
+    }
+
+    /**
+     * Returns the pooled String equal to s, adding s to the pool if no
+     * equal String is in it yet.
+     *
+     * @param s the String to intern
+     * @return the canonical instance of s, or null if s is null
+     */
+    public static String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        int h = s.hashCode();
+        WeakHashMap<String, WeakReference<String>> stripe = pool[(h ^ h >>> 16) & STRIPES - 1];
+        synchronized (stripe) {
+            WeakReference<String> ref = stripe.get(s);
+            String pooled = ref == null ? null : ref.get();
+            if (pooled == null) {
+                stripe.put(s, new WeakReference<>(s));
+                pooled = s;
+            }
+            return pooled;
+        }
+    }
+
+    /**
+     * Returns the directory holding the song files of a year, such as
+     * "songs/2010/".
+     *
+     * @param year the release year
+     * @return the directory, including the trailing "/"
+     */
+    public static String directory(int year) {
+        return directories.computeIfAbsent(year, y -> Song.DIRECTORY + y + "/");
+    }
+
+    /**
+     * Returns the number of distinct Strings in the pool, not counting the
+     * ones already collected.
+     *
+     * @return the pool size
+     */
+    public static int size() {
+        int size = 0;
+        for (WeakHashMap<String, WeakReference<String>> stripe : pool) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Empties the pool. Songs keep their Strings; Songs created afterwards
+     * simply no longer share them with older ones.
+     */
+    public static void clear() {
+        for (WeakHashMap<String, WeakReference<String>> stripe : pool) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Test client - loads the playlist files given as arguments and reports
+     * the heap their songs take per song, before and after interning: once
+     * as Songs used to be stored, with a String of their own for every
+     * field and the full link built in the constructor, and once as Song
+     * objects, whose Strings are interned and whose link is the file name.
+     *
+     * @param args the playlist csv files to load
+     */
+    public static void main(String[] args) {
+        PlaylistLibrary library = new PlaylistLibrary();
+        library.addAllPlaylists(args);
+        ArrayList<Song> loaded = new ArrayList<>();
+        for (Playlist playlist : library.getPlaylists()) {
+            SongNode ptr = playlist.getLast();
+            for (int i = 0; ptr != null && i < playlist.getSize(); i++) {
+                ptr = ptr.getNext();
+                loaded.add(ptr.getSong());
+            }
+        }
+
+        // the fields of every song, in Strings that neither the pool nor any Song holds
+        int songs = loaded.size();
+        String[][] rows = new String[songs][];
+        int[] years = new int[songs];
+        int[] popularities = new int[songs];
+        for (int i = 0; i < songs; i++) {
+            Song song = loaded.get(i);
+            rows[i] = new String[] {copy(song.getSongName()), copy(song.getArtist()), copy(song.getFileName())};
+            years[i] = song.getYear();
+            popularities[i] = song.getPopularity();
+        }
+        loaded = null;
+        library = null;
+        clear();
+
+        long base = usedMemory();
+        StoredLinkSong[] before = new StoredLinkSong[songs];
+        for (int i = 0; i < songs; i++) {
+            String link = rows[i][2] == null ? null : Song.DIRECTORY + years[i] + "/" + rows[i][2];
+            before[i] = new StoredLinkSong(copy(rows[i][0]), copy(rows[i][1]), years[i], popularities[i], link);
+        }
+        long beforeBytes = usedMemory() - base;
+        Reference.reachabilityFence(before);
+        before = null;
+
+        base = usedMemory();
+        Song[] after = new Song[songs];
+        for (int i = 0; i < songs; i++) {
+            after[i] = new Song(copy(rows[i][0]), copy(rows[i][1]), years[i], popularities[i], copy(rows[i][2]));
+        }
+        long afterBytes = usedMemory() - base;
+        Reference.reachabilityFence(after);
+
+        StdOut.printf("%d songs, %d pooled strings%n", songs, size());
+        StdOut.printf("before: %.1f bytes per song (a String per field, full link stored)%n",
+                songs == 0 ? 0.0 : beforeBytes / (double) songs);
+        StdOut.printf("after:  %.1f bytes per song (interned Strings, directory derived)%n",
+                songs == 0 ? 0.0 : afterBytes / (double) songs);
+    }
+
+    // a String equal to s that shares nothing with it
+    private static String copy(String s) {
+        return s == null ? null : new String(s.toCharArray());
+    }
+
+    /*
+     * The fields a Song held before interning, for main() to measure
+     */
+    private static class StoredLinkSong {
+        private final String songName;
+        private final String artist;
+        private final int    year;
+        private final int    popularity;
+        private final String link;
+        private final String directory = Song.DIRECTORY;
+
+        StoredLinkSong(String songName, String artist, int year, int popularity, String link) {
+            this.songName = songName;
+            this.artist = artist;
+            this.year = year;
+            this.popularity = popularity;
+            this.link = link;
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,118 @@
+package music;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded, lock-free ring buffer for handing items from
+ * exactly one producer thread to exactly one consumer thread.
+ *
+ * offer() and poll() never block and never take a lock. put() and take()
+ * wait for room or for an item by parking the calling thread; the other
+ * side unparks it after every successful poll or offer, so no thread spins.
+ */
+
+public final class SpscRing<E> {
+    private final Object[]   items;
+    private final int        mask;
+    private final AtomicLong head = new AtomicLong();  // next slot to poll, written by the consumer
+    private final AtomicLong tail = new AtomicLong();  // next slot to offer, written by the producer
+
+    private volatile Thread producer;  // set while the producer waits for room
+    private volatile Thread consumer;  // set while the consumer waits for an item
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param capacity the number of items the ring can hold, rounded up to a
+     * power of two
+     * @throws IllegalArgumentException if capacity is less than 1
+     */
+    public SpscRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an item if there is room. Must only be called by the producer.
+     *
+     * @param item the item to add, not null
+     * @return true if the item was added, false if the ring is full
+     */
+    public boolean offer(E item) {
+        long t = tail.get();
+        if (t - head.get() == items.length) {
+            return false;
+        }
+        items[(int) t & mask] = item;
+        tail.set(t + 1);  // publishes the item; a full fence so a waiting consumer is seen
+        Thread waiting = consumer;
+        if (waiting != null) LockSupport.unpark(waiting);
+        return true;
+    }
+
+    /**
+     * Removes the oldest item, if any. Must only be called by the consumer.
+     *
+     * @return the oldest item, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int slot = (int) h & mask;
+        E item = (E) items[slot];
+        items[slot] = null;
+        head.set(h + 1);  // hands the slot back; a full fence so a waiting producer is seen
+        Thread waiting = producer;
+        if (waiting != null) LockSupport.unpark(waiting);
+        return item;
+    }
+
+    /**
+     * Adds an item, parking the producer while the ring is full.
+     *
+     * @param item the item to add, not null
+     * @throws InterruptedException if the producer is interrupted while waiting
+     */
+    public void put(E item) throws InterruptedException {
+        while (!offer(item)) {
+            producer = Thread.currentThread();
+            if (tail.get() - head.get() == items.length) {
+                LockSupport.park(this);
+            }
+            producer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest item, parking the consumer while the ring is empty.
+     *
+     * @return the oldest item
+     * @throws InterruptedException if the consumer is interrupted while waiting
+     */
+    public E take() throws InterruptedException {
+        E item;
+        while ((item = poll()) == null) {
+            consumer = Thread.currentThread();
+            if (head.get() == tail.get()) {
+                LockSupport.park(this);
+            }
+            consumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return item;
+    }
+}
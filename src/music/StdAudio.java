@@ -17,7 +17,9 @@ import java.io.IOException;
 
 import java.net.URL;
 
-import java.util.LinkedList;
+import java.nio.ShortBuffer;
+
+import java.util.Arrays;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
@@ -177,12 +179,13 @@ import javax.sound.sampled.UnsupportedAudioFileException;
  *  <li> {@link #stopInBackground()}
  *  </ul>
  *  <p>
- *  Each call to the first method plays the specified sound in a separate background
+ *  Each call to the first method plays the specified sound in a background
  *  thread. Unlike with the {@code play()} methods, your program will not wait
  *  for the samples to finish playing before continuing.
  *  It supports playing an audio file in WAVE, AU, AIFF, or MIDI format.
  *  It is possible to play
- *  multiple audio files simultaneously (in separate background threads).
+ *  multiple audio files simultaneously (up to 16 by default, see
+ *  {@link #backgroundScheduler()}); the returned handle stops one of them.
  *  The second method stops the playing of all audio in background threads.
  *  <p>
  *  <b>Draining standard audio.</b>
@@ -229,8 +232,18 @@ public final class StdAudio {
     private static byte[] buffer;         // our internal buffer
     private static int bufferSize = 0;    // number of samples currently in internal buffer
 
-    // queue of background Runnable objects
-    private static LinkedList<BackgroundRunnable> backgroundRunnables = new LinkedList<>();
+    // play(double[]) converts this many samples at a time and writes them to the line in one call
+    private static final int BULK_SAMPLES = 8192;
+    private static final byte[] bulkBuffer = new byte[BULK_SAMPLES * BYTES_PER_SAMPLE];
+
+    // plays the files of playInBackground(), at most MAX_BACKGROUND_STREAMS at a time
+    private static final int MAX_BACKGROUND_STREAMS = 16;
+    private static final PlaybackScheduler backgroundScheduler =
+            new PlaybackScheduler(MAX_BACKGROUND_STREAMS, "stdaudio-background");
+
+    // decoded samples of recently read files
+    private static final long READ_CACHE_BYTES = 64L << 20;
+    private static final AudioCache readCache = new AudioCache(READ_CACHE_BYTES);
 
     // for recording audio
     private static QueueOfDoubles recordedSamples = null;
@@ -269,14 +282,21 @@ public final class StdAudio {
     }
 
     // get an AudioInputStream object from a file
-    private static AudioInputStream getAudioInputStreamFromFile(String filename) {
+    static AudioInputStream getAudioInputStreamFromFile(String filename) {
         if (filename == null) {
             throw new IllegalArgumentException("filename is null");
         }
 
         try {
-            // first try to read file from local file system
+            // first try to read file from local file system,
+            // memory-mapped if it is a 16-bit PCM WAV file
             File file = new File(filename);
+            if (file.isFile()) {
+                WavFile wav = WavFile.open(file);
+                if (wav != null) {
+                    return wav.stream();
+                }
+            }
             if (file.exists()) {
                 return AudioSystem.getAudioInputStream(file);
             }
@@ -369,9 +389,62 @@ public final class StdAudio {
      */
     public static void play(double[] samples) {
         if (samples == null) throw new IllegalArgumentException("argument to play() is null");
-        for (int i = 0; i < samples.length; i++) {
-            play(samples[i]);
+
+        // the same bytes reach the sound card as if play(double) were called for each sample,
+        // but whole blocks are clipped, converted and recorded at once
+        int n = samples.length;
+        int i = 0;
+
+        // top up the partly filled internal buffer first, so the bytes stay in order
+        if (bufferSize > 0) {
+            int to = Math.min(n, (buffer.length - bufferSize) / BYTES_PER_SAMPLE);
+            int end = encode(samples, 0, to, buffer, bufferSize);
+            bufferSize += end * BYTES_PER_SAMPLE;
+            if (end < to) throw new IllegalArgumentException("sample is NaN");
+            if (bufferSize >= buffer.length) {
+                line.write(buffer, 0, buffer.length);
+                bufferSize = 0;
+            }
+            i = to;
         }
+
+        // as long as there is more than the internal buffer holds, write blocks to the line directly
+        while (n - i >= buffer.length / BYTES_PER_SAMPLE) {
+            int to = Math.min(n, i + BULK_SAMPLES);
+            int end = encode(samples, i, to, bulkBuffer, 0);
+            line.write(bulkBuffer, 0, (end - i) * BYTES_PER_SAMPLE);
+            if (end < to) throw new IllegalArgumentException("sample is NaN");
+            i = to;
+        }
+
+        // keep the rest in the internal buffer, like play(double) would
+        int end = encode(samples, i, n, buffer, bufferSize);
+        bufferSize += (end - i) * BYTES_PER_SAMPLE;
+        if (end < n) throw new IllegalArgumentException("sample is NaN");
+    }
+
+    /*
+     * Clips samples[from, to) and converts them to 16-bit little endian bytes in
+     * dst starting at offset, exactly as play(double) does, and records them if
+     * recording. Stops before the first NaN and returns its index, or to if
+     * there is none.
+     */
+    private static int encode(double[] samples, int from, int to, byte[] dst, int offset) {
+        int end = from;
+        while (end < to && !Double.isNaN(samples[end])) end++;
+
+        for (int i = from, j = offset; i < end; i++, j += BYTES_PER_SAMPLE) {
+            double sample = Math.max(-1.0, Math.min(+1.0, samples[i]));
+            short s = (short) (MAX_16_BIT * sample);
+            if (sample == 1.0) s = Short.MAX_VALUE;   // special case since 32768 not a short
+            dst[j] = (byte) s;
+            dst[j + 1] = (byte) (s >> 8);             // little endian
+        }
+
+        if (isRecording) {
+            recordedSamples.enqueueClipped(samples, from, end);
+        }
+        return end;
     }
 
     /**
@@ -405,6 +478,7 @@ public final class StdAudio {
                 line.drain();
                 line.close();
             }
+            closeQuietly(ais);
         }
     }
 
@@ -415,56 +489,122 @@ public final class StdAudio {
      * The sound format must use 16-bit audio data with a sampling rate of 44,100.
      * The sound format can be either monoaural or stereo, and the bytes can
      * be stored in either little endian or big endian order.
+     * <p>
+     * Decoded samples of local files are kept in {@link #readCache()}, so
+     * reading an unchanged file again skips decoding.
      *
      * @param  filename the name of the audio file
      * @return the array of samples
      */
     public static double[] read(String filename) {
+        short[] pcm = readPcm(filename);
+        double[] samples = new double[pcm.length];
+        for (int i = 0; i < pcm.length; i++) {
+            samples[i] = pcm[i] / ((double) MAX_16_BIT);
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the cache of decoded audio used by {@link #read(String filename)}.
+     * It can be used to change the byte budget or to inspect the hit, miss
+     * and eviction counters.
+     *
+     * @return the read cache
+     */
+    public static AudioCache readCache() {
+        return readCache;
+    }
+
+    // reads a file as 44,100 Hz, 16-bit, mono samples; the array may be shared
+    // with the cache and must not be modified
+    static short[] readPcm(String filename) {
+        if (filename == null) {
+            throw new IllegalArgumentException("filename is null");
+        }
+        File file = new File(filename);
+        if (!file.isFile()) {
+            return decode(filename); // resources and URLs are not cached
+        }
+
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        short[] pcm = readCache.get(path, lastModified);
+        if (pcm == null) {
+            pcm = decode(filename);
+            readCache.put(path, lastModified, pcm);
+        }
+        return pcm;
+    }
+
+    // decodes an audio file into 44,100 Hz, 16-bit, mono samples
+    private static short[] decode(String filename) {
         // 4K buffer (must be a multiple of 2 for mono or 4 for stereo)
         int READ_BUFFER_SIZE = 4096;
 
-        // create AudioInputStream from file
-        AudioInputStream fromAudioInputStream = getAudioInputStreamFromFile(filename);
-        AudioFormat fromAudioFormat = fromAudioInputStream.getFormat();
-
-        // normalize AudioInputStream to 44,100 Hz, 16-bit audio, mono, signed PCM, little endian
+        // normalize to 44,100 Hz, 16-bit audio, mono, signed PCM, little endian
         // https://docs.oracle.com/javase/tutorial/sound/converters.html
         AudioFormat toAudioFormat = new AudioFormat((float) SAMPLE_RATE, BITS_PER_SAMPLE, MONO, SIGNED, LITTLE_ENDIAN);
+
+        // a WAV file already in that format is copied straight from the mapped file,
+        // and one in another format is converted from the same mapping
+        File file = new File(filename);
+        WavFile wav = file.isFile() ? WavFile.open(file) : null;
+        if (wav != null && wav.getFormat().matches(toAudioFormat)) {
+            try {
+                ShortBuffer samples = wav.samples();
+                short[] pcm = new short[samples.remaining()];
+                samples.get(pcm);
+                return pcm;
+            }
+            finally {
+                wav.close();
+            }
+        }
+
+        // otherwise let AudioSystem convert it
+        AudioInputStream fromAudioInputStream = wav != null ? wav.stream() : getAudioInputStreamFromFile(filename);
+        AudioFormat fromAudioFormat = fromAudioInputStream.getFormat();
         if (!AudioSystem.isConversionSupported(toAudioFormat, fromAudioFormat)) {
+            closeQuietly(fromAudioInputStream);
             throw new IllegalArgumentException("system cannot convert from " + fromAudioFormat + " to " + toAudioFormat);
         }
         AudioInputStream toAudioInputStream = AudioSystem.getAudioInputStream(toAudioFormat, fromAudioInputStream);
 
-        // extract the audio data and convert to a double[] with each sample between -1 and +1
+        // extract the audio data as 16-bit samples
         try {
-            QueueOfDoubles queue = new QueueOfDoubles();
+            short[] pcm = new short[READ_BUFFER_SIZE];
+            int n = 0;
             byte[] bytes = new byte[READ_BUFFER_SIZE];
             int count;
             while ((count = toAudioInputStream.read(bytes, 0, READ_BUFFER_SIZE)) != -1) {
+                if (n + count/2 > pcm.length) {
+                    pcm = Arrays.copyOf(pcm, Math.max(2*pcm.length, n + count/2));
+                }
 
                 // little endian, monoaural
                 for (int i = 0; i < count/2; i++) {
-                    double sample = ((short) (((bytes[2*i+1] & 0xFF) << 8) | (bytes[2*i] & 0xFF))) / ((double) MAX_16_BIT);
-                    queue.enqueue(sample);
-                }
-
-                // little endian, stereo (perhaps, for a future version that supports stereo)
-                /*
-                for (int i = 0; i < count/4; i++) {
-                    double left  = ((short) (((bytes[4*i + 1] & 0xFF) << 8) | (bytes[4*i + 0] & 0xFF))) / ((double) MAX_16_BIT);
-                    double right = ((short) (((bytes[4*i + 3] & 0xFF) << 8) | (bytes[4*i + 2] & 0xFF))) / ((double) MAX_16_BIT);
-                    double sample = (left + right) / 2.0;
-                    queue.enqueue(sample);
+                    pcm[n++] = (short) (((bytes[2*i+1] & 0xFF) << 8) | (bytes[2*i] & 0xFF));
                 }
-                */
             }
-            toAudioInputStream.close();
-            fromAudioInputStream.close();
-            return queue.toArray();
+            return Arrays.copyOf(pcm, n);
         }
         catch (IOException ioe) {
             throw new IllegalArgumentException("could not read '" + filename + "'", ioe);
         }
+        finally {
+            closeQuietly(toAudioInputStream);
+            closeQuietly(fromAudioInputStream);
+        }
+    }
+
+    private static void closeQuietly(AudioInputStream ais) {
+        try {
+            ais.close();
+        }
+        catch (IOException e) {
+            // the samples have been read or the failure is reported already
+        }
     }
 
     /**
@@ -473,6 +613,8 @@ public final class StdAudio {
      * or {@code .aiff}.
      * The format uses a sampling rate of 44,100 Hz, 16-bit audio,
      * mono, signed PCM, ands little Endian.
+     * WAV files are written through a {@link WavWriter}; use one directly
+     * to save samples a block at a time.
      *
      * @param  filename the name of the audio file
      * @param  samples the array of samples
@@ -490,6 +632,14 @@ public final class StdAudio {
             throw new IllegalArgumentException("samples[] is null");
         }
 
+        // WAVE files are written a block at a time, without a copy of the samples as bytes
+        if (filename.endsWith(".wav") || filename.endsWith(".WAV")) {
+            try (WavWriter writer = new WavWriter(filename)) {
+                writer.append(samples);
+            }
+            return;
+        }
+
         // assumes 16-bit samples with sample rate = 44,100 Hz
         // use 16-bit audio, mono, signed PCM, little Endian
         AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, MONO, SIGNED, LITTLE_ENDIAN);
@@ -536,112 +686,110 @@ public final class StdAudio {
     /**
      * Stops the playing of all audio files in background threads.
      */
-    public static synchronized void stopInBackground() {
-        for (BackgroundRunnable runnable : backgroundRunnables) {
-            runnable.stop();
-        }
-        backgroundRunnables = new LinkedList<>();
+    public static void stopInBackground() {
+        backgroundScheduler.stopAll();
     }
 
     /**
-     * Plays an audio file (in WAVE, AU, AIFF, or MIDI format) in its own
-     * background thread. Multiple audio files can be played simultaneously.
+     * Plays an audio file (in WAVE, AU, AIFF, or MIDI format) in the
+     * background. Multiple audio files can be played simultaneously; when
+     * the maximum number of background streams is playing, the file waits
+     * until one of them finishes.
      *
      * @param filename the name of the audio file
+     * @return a handle that stops this file alone
      * @throws IllegalArgumentException if unable to play {@code filename}
      * @throws IllegalArgumentException if {@code filename} is {@code null}
      */
-    public static synchronized void playInBackground(final String filename) {
-        BackgroundRunnable runnable = new BackgroundRunnable(filename);
-        new Thread(runnable).start();
-        backgroundRunnables.add(runnable);
+    public static PlaybackScheduler.Stream playInBackground(final String filename) {
+        if (filename == null) throw new IllegalArgumentException("filename is null");
+        return backgroundScheduler.submit(filename, stream -> playStream(filename, stream));
     }
 
-    private static class BackgroundRunnable implements Runnable {
-        private volatile boolean exit = false;
-        private final String filename;
-
-        public BackgroundRunnable(String filename) {
-            this.filename = filename;
-        }
+    /**
+     * Returns the scheduler of the background streams, to change the maximum
+     * number of streams or to read its metrics.
+     *
+     * @return the scheduler used by playInBackground()
+     */
+    public static PlaybackScheduler backgroundScheduler() {
+        return backgroundScheduler;
+    }
 
-        // https://www3.ntu.edu.sg/home/ehchua/programming/java/J8c_PlayingSound.html
-        // play a wav or aif file
-        // javax.sound.sampled.Clip fails for long clips (on some systems)
-        public void run() {
-            AudioInputStream ais = getAudioInputStreamFromFile(filename);
+    // https://www3.ntu.edu.sg/home/ehchua/programming/java/J8c_PlayingSound.html
+    // play a wav or aif file
+    // javax.sound.sampled.Clip fails for long clips (on some systems)
+    private static void playStream(String filename, PlaybackScheduler.Stream stream) {
+        AudioInputStream ais = getAudioInputStreamFromFile(filename);
 
-            SourceDataLine line = null;
-            int BUFFER_SIZE = 4096; // 4K buffer
+        SourceDataLine line = null;
+        int BUFFER_SIZE = 4096; // 4K buffer
 
+        try {
+            AudioFormat audioFormat = ais.getFormat();
+            DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
+            line = (SourceDataLine) AudioSystem.getLine(info);
+            line.open(audioFormat);
+            line.start();
+            byte[] samples = new byte[BUFFER_SIZE];
+            int count;
+            while (!stream.isStopped() && (count = ais.read(samples, 0, BUFFER_SIZE)) != -1) {
+                line.write(samples, 0, count);
+            }
+        }
+        catch (IOException | LineUnavailableException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (line != null) {
+                line.drain();
+                line.close();
+            }
             try {
-                AudioFormat audioFormat = ais.getFormat();
-                DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
-                line = (SourceDataLine) AudioSystem.getLine(info);
-                line.open(audioFormat);
-                line.start();
-                byte[] samples = new byte[BUFFER_SIZE];
-                int count;
-                while (!exit && (count = ais.read(samples, 0, BUFFER_SIZE)) != -1) {
-                    line.write(samples, 0, count);
-                }
+                ais.close();
             }
-            catch (IOException | LineUnavailableException e) {
+            catch (IOException e) {
                 e.printStackTrace();
             }
-            finally {
-                if (line != null) {
-                    line.drain();
-                    line.close();
-                }
-            }
-        }
-
-        public void stop() {
-            exit = true;
         }
     }
 
 
     /**
-     * Loops an audio file (in WAVE, AU, AIFF, or MIDI format) in its
-     * own background thread.
+     * Loops an audio file (in WAVE, AU, AIFF, or MIDI format) in the
+     * background until it is stopped, either through the returned handle or
+     * by {@link #stopInBackground()}. The file is opened on a background
+     * stream like playInBackground(); once the Clip loops, that stream
+     * thread is free again and the Clip plays on its own until it is stopped.
      *
      * @param filename the name of the audio file
+     * @return a handle that stops this loop
      * @throws IllegalArgumentException if {@code filename} is {@code null}
-     * @deprecated to be removed in a future update, as it doesn't interact
-     *             well with {@link #playInBackground(String filename)} or
-     *             {@link #stopInBackground()}.
      */
-    @Deprecated
-    public static synchronized void loopInBackground(String filename) {
+    public static PlaybackScheduler.Stream loopInBackground(String filename) {
         if (filename == null) throw new IllegalArgumentException();
+        return backgroundScheduler.submit(filename, stream -> loopStream(filename, stream));
+    }
 
-        final AudioInputStream ais = getAudioInputStreamFromFile(filename);
-
-        try {
-            Clip clip = AudioSystem.getClip();
-            // Clip clip = (Clip) AudioSystem.getLine(new Line.Info(Clip.class));
+    // starts the Clip looping on its own thread and leaves it to stop() to close
+    private static void loopStream(String filename, PlaybackScheduler.Stream stream) {
+        Clip clip = null;
+        try (AudioInputStream ais = getAudioInputStreamFromFile(filename)) {
+            clip = AudioSystem.getClip();
             clip.open(ais);
             clip.loop(Clip.LOOP_CONTINUOUSLY);
+            final Clip looping = clip;
+            stream.detach(() -> {
+                looping.stop();
+                looping.close();
+            });
         }
         catch (IOException | LineUnavailableException e) {
             e.printStackTrace();
-        }
-
-        // keep JVM open
-        new Thread(new Runnable() {
-            public void run() {
-                while (true) {
-                    try {
-                       Thread.sleep(1000);
-                    }
-                    catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
+            if (clip != null) {
+                clip.close();
             }
-        }).start();
+        }
     }
 
 
@@ -704,6 +852,14 @@ public final class StdAudio {
             a[n++] = item;                            // add item
         }
 
+        // enqueue items[from, to) onto the queue, clipped to [-1, +1]
+        public void enqueueClipped(double[] items, int from, int to) {
+            int count = to - from;
+            if (n + count > a.length) resize(Math.max(2*a.length, n + count));
+            for (int i = from; i < to; i++)
+                a[n++] = Math.max(-1.0, Math.min(+1.0, items[i]));
+        }
+
 
         // number of items in queue
         public int size() {
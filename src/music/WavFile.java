@@ -0,0 +1,245 @@
+package music;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * This class reads a plain 16-bit PCM WAV file by memory-mapping its data
+ * chunk, so the samples are read straight from the page cache without going
+ * through AudioSystem.
+ *
+ * open() parses the RIFF header and returns null for anything that is not
+ * 16-bit signed PCM (such as 8-bit, float or compressed WAV files, or other
+ * file types); callers then fall back to AudioSystem. A data chunk length
+ * that runs past the end of the file, as written by programs that stream
+ * their output, is cut at the end of the file.
+ *
+ * samples() is a view of the mapped file, not a copy. The mapping is
+ * released by the garbage collector once no view or stream uses it, so a
+ * view stays readable for as long as it is reachable. close() only stops
+ * new views and streams from being made. Closing a stream() closes the
+ * WavFile too.
+ */
+
+public class WavFile implements Closeable {
+    private static final int RIFF = 0x46464952;  // "RIFF" read little endian
+    private static final int WAVE = 0x45564157;  // "WAVE"
+    private static final int FMT  = 0x20746d66;  // "fmt "
+    private static final int DATA = 0x61746164;  // "data"
+
+    private static final int FORMAT_PCM        = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final AudioFormat      format;
+    private final MappedByteBuffer data;    // the data chunk, whole frames only
+    private final long             frames;
+    private boolean                closed;
+
+    private WavFile(AudioFormat format, MappedByteBuffer data, long frames) {
+        this.format = format;
+        this.data = data;
+        this.frames = frames;
+    }
+
+    /**
+     * Opens a WAV file and maps its data chunk.
+     *
+     * @param file the file to open
+     * @return the mapped file, or null if it is not a 16-bit PCM WAV file
+     * @throws IllegalArgumentException if the file cannot be read
+     */
+    public static WavFile open(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, header, 0, 12) || header.getInt(0) != RIFF || header.getInt(8) != WAVE) {
+                return null;
+            }
+
+            int channels = 0;
+            int sampleRate = 0;
+            int blockAlign = 0;
+            long pos = 12;
+            while (pos + 8 <= size) {
+                if (!readFully(channel, header, pos, 8)) {
+                    return null;
+                }
+                int id = header.getInt(0);
+                long length = header.getInt(4) & 0xFFFFFFFFL;
+
+                if (id == FMT) {
+                    if (length < 16 || !readFully(channel, header, pos + 8, (int) Math.min(length, 40))) {
+                        return null;
+                    }
+                    int tag = header.getShort(0) & 0xFFFF;
+                    int bits = header.getShort(14) & 0xFFFF;
+                    if (tag == FORMAT_EXTENSIBLE) {
+                        // cbSize, valid bits, channel mask, then the sub format GUID starting with the tag
+                        if (length < 40 || (header.getShort(18) & 0xFFFF) != bits) {
+                            return null;
+                        }
+                        tag = header.getShort(24) & 0xFFFF;
+                    }
+                    if (tag != FORMAT_PCM || bits != 16) {
+                        return null;
+                    }
+                    channels = header.getShort(2) & 0xFFFF;
+                    sampleRate = header.getInt(4);
+                    blockAlign = header.getShort(12) & 0xFFFF;
+                    if (channels == 0 || sampleRate <= 0 || blockAlign != 2 * channels) {
+                        return null;
+                    }
+                }
+                else if (id == DATA) {
+                    if (channels == 0) {
+                        return null; // no fmt chunk before the data
+                    }
+                    long offset = pos + 8;
+                    long frames = Math.min(length, size - offset) / blockAlign;
+                    if (frames * blockAlign > Integer.MAX_VALUE) {
+                        return null; // too large to map as one buffer
+                    }
+                    MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, frames * blockAlign);
+                    data.order(ByteOrder.LITTLE_ENDIAN);
+                    AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16,
+                            channels, blockAlign, sampleRate, false);
+                    return new WavFile(format, data, frames);
+                }
+                pos += 8 + length + (length & 1);  // chunks are padded to an even length
+            }
+            return null;
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("could not read '" + file + "'", e);
+        }
+    }
+
+    /**
+     * Returns the samples as 16-bit values, interleaved by channel. The
+     * buffer is a view of the mapped file; each call returns a new view
+     * with its own position.
+     *
+     * @return the samples
+     * @throws IllegalStateException if the file has been closed
+     */
+    public ShortBuffer samples() {
+        checkOpen();
+        return data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    /**
+     * Returns an AudioInputStream that reads the mapped data chunk.
+     *
+     * @return a new stream positioned at the first frame
+     * @throws IllegalStateException if the file has been closed
+     */
+    public AudioInputStream stream() {
+        checkOpen();
+        return new AudioInputStream(new BufferInputStream(this, data.duplicate()), format, frames);
+    }
+
+    /**
+     * Closes the file: samples() and stream() may not be called any more.
+     * The views and streams returned so far stay readable; the mapping is
+     * released when the last of them is garbage collected. Calling close()
+     * again does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    public AudioFormat getFormat() { return format; }
+    public long        getFrames() { return frames; }
+
+    private synchronized void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("WavFile is closed");
+        }
+    }
+
+    // reads length bytes at position into the start of buffer
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * An InputStream over a ByteBuffer of a WavFile, which it closes
+     */
+    private static class BufferInputStream extends InputStream {
+        private final WavFile    file;
+        private final ByteBuffer buffer;
+
+        BufferInputStream(WavFile file, ByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void close() {
+            file.close();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
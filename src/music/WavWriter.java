@@ -0,0 +1,212 @@
+package music;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class writes a 16-bit PCM WAV file a block of samples at a time, so
+ * a long mixdown never has to be held in memory as bytes.
+ *
+ * The constructor writes the header with the lengths left at 0, append()
+ * converts the samples into a fixed buffer that is written to a FileChannel
+ * whenever it fills up, and close() writes what is left and patches the
+ * lengths in the header. Memory use is the same for any length of output.
+ *
+ * Samples are converted exactly as StdAudio.save() always has: multiplied by
+ * 32,768 and cast to a short, with 1.0 written as 32,767. The file written
+ * for a whole array is identical to the one AudioSystem writes.
+ */
+
+public class WavWriter implements Closeable {
+    private static final int  HEADER_BYTES   = 44;
+    private static final int  BUFFER_BYTES   = 64 * 1024;
+    private static final long MAX_DATA_BYTES = 0xFFFFFFFFL - (HEADER_BYTES - 8);  // RIFF lengths are 32-bit
+    private static final int  MAX_16_BIT     = 32768;
+
+    private final String      filename;
+    private final FileChannel channel;
+    private final ByteBuffer  buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final int         channels;
+    private long              dataBytes;   // bytes of samples appended so far
+    private boolean           closed;
+
+    /**
+     * Creates (or truncates) a 44,100 Hz mono WAV file, the format of
+     * StdAudio.save().
+     *
+     * @param filename the name of the file
+     * @throws IllegalArgumentException if the file cannot be created
+     */
+    public WavWriter(String filename) {
+        this(filename, StdAudio.SAMPLE_RATE, 1);
+    }
+
+    /**
+     * Creates (or truncates) a WAV file.
+     *
+     * @param filename the name of the file
+     * @param sampleRate frames per second
+     * @param channels samples per frame; append() takes them interleaved
+     * @throws IllegalArgumentException if the file cannot be created, or if
+     * sampleRate or channels is less than 1
+     */
+    public WavWriter(String filename, int sampleRate, int channels) {
+        if (filename == null) {
+            throw new IllegalArgumentException("filename is null");
+        }
+        if (sampleRate < 1 || channels < 1 || channels > 0xFFFF / 2) {
+            throw new IllegalArgumentException("invalid sample rate or channels");
+        }
+        this.filename = filename;
+        this.channels = channels;
+        try {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save file '" + filename + "'", e);
+        }
+
+        buffer.putInt(0x46464952);                // "RIFF"
+        buffer.putInt(0);                         // RIFF length, patched by close()
+        buffer.putInt(0x45564157);                // "WAVE"
+        buffer.putInt(0x20746d66);                // "fmt "
+        buffer.putInt(16);                        // fmt length
+        buffer.putShort((short) 1);               // PCM
+        buffer.putShort((short) channels);
+        buffer.putInt(sampleRate);
+        buffer.putInt(sampleRate * 2 * channels); // bytes per second
+        buffer.putShort((short) (2 * channels));  // bytes per frame
+        buffer.putShort((short) 16);              // bits per sample
+        buffer.putInt(0x61746164);                // "data"
+        buffer.putInt(0);                         // data length, patched by close()
+    }
+
+    /**
+     * Appends samples to the file.
+     *
+     * @param samples the samples to append
+     * @throws IllegalArgumentException if samples is null or cannot be written
+     * @throws IllegalStateException if the writer is closed, or the file
+     * would grow past the 4 GB a WAV file can describe
+     */
+    public void append(double[] samples) {
+        if (samples == null) {
+            throw new IllegalArgumentException("samples[] is null");
+        }
+        append(samples, 0, samples.length);
+    }
+
+    /**
+     * Appends samples[from, to) to the file.
+     *
+     * @param samples the array of samples
+     * @param from the first sample to append
+     * @param to one past the last sample to append
+     * @throws IllegalArgumentException if samples is null or cannot be written
+     * @throws IndexOutOfBoundsException if from or to is out of range
+     * @throws IllegalStateException if the writer is closed, or the file
+     * would grow past the 4 GB a WAV file can describe
+     */
+    public void append(double[] samples, int from, int to) {
+        if (samples == null) {
+            throw new IllegalArgumentException("samples[] is null");
+        }
+        if (from < 0 || to > samples.length || from > to) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", length " + samples.length);
+        }
+        if (closed) {
+            throw new IllegalStateException("writer is closed");
+        }
+        if (dataBytes + 2L * (to - from) > MAX_DATA_BYTES) {
+            throw new IllegalStateException("WAV file of more than 4 GB");
+        }
+
+        for (int i = from; i < to; i++) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            short s = (short) (samples[i] * MAX_16_BIT);
+            if (samples[i] == 1.0) s = Short.MAX_VALUE;   // special case since 32768 not a short
+            buffer.putShort(s);
+        }
+        dataBytes += 2L * (to - from);
+    }
+
+    /**
+     * Returns the number of frames appended so far.
+     *
+     * @return samples appended divided by channels
+     */
+    public long getFrames() {
+        return dataBytes / (2L * channels);
+    }
+
+    /**
+     * Writes the remaining samples, patches the lengths in the header and
+     * closes the file. Closing again has no effect.
+     *
+     * @throws IllegalArgumentException if the file cannot be written
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            // a frame is whole even if the samples of the last one are missing
+            long frameBytes = 2L * channels;
+            long padding = (frameBytes - dataBytes % frameBytes) % frameBytes;
+            for (long i = 0; i < padding; i++) buffer.put((byte) 0);
+            dataBytes += padding;
+            flush();
+
+            ByteBuffer lengths = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            write(lengths.putInt(0, (int) (HEADER_BYTES - 8 + dataBytes)), 4);
+            write(lengths.putInt(0, (int) dataBytes), HEADER_BYTES - 4);
+            channel.close();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save file '" + filename + "'", e);
+        }
+        finally {
+            if (channel.isOpen()) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    // already reporting the first failure
+                }
+            }
+        }
+    }
+
+    // writes the buffer at the end of the file
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("unable to save file '" + filename + "'", e);
+        }
+        buffer.clear();
+    }
+
+    // writes the 4 bytes of value at position
+    private void write(ByteBuffer value, long position) throws IOException {
+        value.clear();
+        while (value.hasRemaining()) {
+            channel.write(value, position + value.position());
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Edits a ConcurrentPlaylistLibrary from many threads at once, merging and
+ * removing songs while others insert, reorder and read, and checks that no
+ * song is lost or duplicated, that the snapshots match the rings and that
+ * the log recovers the same library.
+ */
+
+class ConcurrentPlaylistLibraryTest {
+    private static final int THREADS = 8;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void mergesAndRemovesKeepEverySongOnce() throws Exception {
+        for (int round = 0; round < 6; round++) {
+            Random random = new Random(round);
+            ArrayList<Playlist> playlists = new ArrayList<>();
+            Set<Song> expected = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            for (int i = 0; i < 10; i++) {
+                Playlist playlist = TestPlaylists.generate(100 + random.nextInt(200), "P" + i + "_", random);
+                expected.addAll(TestPlaylists.songs(playlist));
+                playlists.add(playlist);
+            }
+            ConcurrentPlaylistLibrary library = new ConcurrentPlaylistLibrary(playlists);
+            library.setIndexSongs(round % 2 == 0);
+
+            int seed = round * 100;
+            run(t -> {
+                Random r = new Random(seed + t);
+                for (int k = 0; k < 1500; k++) {
+                    int n = library.getPlaylists().size();
+                    int i = r.nextInt(n);
+                    int op = r.nextInt(100);
+                    try {
+                        if (op < 35) {
+                            Song song = new Song("X" + t + "_" + k, "B", 2010, r.nextInt(100));
+                            expected.add(song);
+                            if (!library.insertSong(i, 1 + r.nextInt(5), song)) expected.remove(song);
+                        } else if (op < 60) {
+                            PersistentPlaylist snapshot = library.getSnapshot(i);
+                            if (snapshot.size() > 0) {
+                                Song song = snapshot.get(1 + r.nextInt(snapshot.size()));
+                                if (library.removeSong(i, song)) expected.remove(song);
+                            }
+                        } else if (op < 65) {
+                            library.reversePlaylist(i);
+                        } else if (op < 70) {
+                            library.sortPlaylist(i);
+                        } else if (op < 78 && n > 3) {
+                            library.mergePlaylists(i, r.nextInt(n));
+                        } else if (op < 82 && n > 4) {
+                            library.mergePlaylists(i, r.nextInt(n), r.nextInt(n));
+                        } else {
+                            for (int j = 0; j < n; j++) {
+                                library.getSnapshot(j).size();
+                            }
+                        }
+                    } catch (IndexOutOfBoundsException e) {
+                        // a merge removed the playlist at i meanwhile
+                    }
+                }
+            });
+
+            Set<Song> found = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < library.getPlaylists().size(); i++) {
+                Playlist playlist = library.getPlaylists().get(i);
+                List<Song> songs = TestPlaylists.songs(playlist);
+                assertTrue(songs.isEmpty() || ringLength(playlist) == playlist.getSize(), "round " + round + " ring " + i);
+                assertEquals(songs, snapshotSongs(library, i), "round " + round + " snapshot " + i);
+                for (Song song : songs) {
+                    assertTrue(found.add(song), "round " + round + " " + song + " twice");
+                }
+            }
+            assertEquals(expected.size(), found.size(), "round " + round);
+            assertTrue(found.containsAll(expected), "round " + round);
+        }
+    }
+
+    @Test
+    void logRecoversTheLibraryAfterConcurrentEdits() throws Exception {
+        for (int round = 0; round < 4; round++) {
+            Random random = new Random(10 + round);
+            ArrayList<Playlist> playlists = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                playlists.add(TestPlaylists.generate(100 + random.nextInt(100), "P" + i + "_", random));
+            }
+            ConcurrentPlaylistLibrary library = new ConcurrentPlaylistLibrary(playlists);
+            library.setIndexLibrary(round % 2 == 0);
+            library.setCheckpointBytes(round % 2 == 0 ? 4000 : 1L << 40);
+            String snapshot = dir.resolve("library.snap").toString();
+            String log = dir.resolve("library.log").toString();
+            library.openLog(snapshot, log, round % 3, 0);
+
+            int seed = round * 100;
+            run(t -> {
+                Random r = new Random(seed + t);
+                for (int k = 0; k < 800; k++) {
+                    int n = library.getPlaylists().size();
+                    int i = r.nextInt(n);
+                    int op = r.nextInt(100);
+                    try {
+                        if (op < 35) {
+                            library.insertSong(i, 1 + r.nextInt(5), new Song("X" + t + "_" + k, "B", 2010, r.nextInt(100)));
+                        } else if (op < 55) {
+                            PersistentPlaylist songs = library.getSnapshot(i);
+                            if (songs.size() > 0) library.removeSong(i, songs.get(1 + r.nextInt(songs.size())));
+                        } else if (op < 60) {
+                            library.reversePlaylist(i);
+                        } else if (op < 63) {
+                            library.sortPlaylist(i);
+                        } else if (op < 70 && n > 3) {
+                            library.mergePlaylists(i, r.nextInt(n));
+                        } else if (op < 74 && n > 4) {
+                            library.mergePlaylists(i, r.nextInt(n), r.nextInt(n));
+                        } else if (op < 78) {
+                            library.addPlaylist("playlist" + (1 + r.nextInt(4)) + ".csv", r.nextInt(n + 1));
+                        } else if (op < 80 && n > 3) {
+                            library.removePlaylist(i);
+                        } else if (op < 82) {
+                            library.checkpoint();
+                        } else if (library.isIndexLibrary()) {
+                            library.searchSongs("P1", 5);
+                        }
+                    } catch (IndexOutOfBoundsException e) {
+                        // the playlist at i was merged or removed meanwhile
+                    }
+                }
+            });
+
+            String expected = TestPlaylists.state(library);
+            for (int i = 0; i < library.getPlaylists().size(); i++) {
+                assertEquals(TestPlaylists.songs(library.getPlaylists().get(i)), snapshotSongs(library, i));
+            }
+            library.closeLog();
+            PlaylistLibrary recovered = new PlaylistLibrary();
+            recovered.openLog(snapshot, log, 1, 0);
+            recovered.closeLog();
+            assertEquals(expected, TestPlaylists.state(recovered), "round " + round);
+        }
+    }
+
+    // runs work(t) on THREADS threads at once, rethrowing what any of them threw
+    private static void run(ThreadWork work) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(pool.submit(() -> work.run(thread)));
+            }
+            for (Future<?> future : futures) {
+                future.get(120, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private interface ThreadWork {
+        void run(int thread);
+    }
+
+    private static List<Song> snapshotSongs(ConcurrentPlaylistLibrary library, int playlistIndex) {
+        List<Song> songs = new ArrayList<>();
+        for (Song song : library.getSnapshot(playlistIndex)) {
+            songs.add(song);
+        }
+        return songs;
+    }
+
+    // counts the nodes of the ring, stopping once it has gone past the size
+    private static int ringLength(Playlist playlist) {
+        int length = 0;
+        SongNode ptr = playlist.getLast();
+        do {
+            length++;
+            ptr = ptr.getNext();
+        } while (ptr != playlist.getLast() && length <= playlist.getSize());
+        return length;
+    }
+}
@@ -0,0 +1,126 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Exports playlists to csv and reads them back with createPlaylist.
+ */
+
+class CsvPlaylistWriterTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void exportedFilesMatchTheOriginals() throws IOException {
+        PlaylistLibrary library = csvLibrary(new PlaylistLibrary());
+        String[] files = files(4);
+        library.exportPlaylists(files);
+        for (int i = 0; i < 4; i++) {
+            // every line is written with its line break, the last one too
+            String original = new String(Files.readAllBytes(Paths.get("playlist" + (i + 1) + ".csv")), StandardCharsets.UTF_8);
+            if (!original.endsWith("\n")) {
+                original += "\n";
+            }
+            assertArrayEquals(original.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(Paths.get(files[i])),
+                    "playlist" + (i + 1) + ".csv");
+        }
+    }
+
+    @Test
+    void exportPlaylistsWritesOnlyChangedPlaylists() {
+        for (PlaylistLibrary library : new PlaylistLibrary[] {new PlaylistLibrary(), new ConcurrentPlaylistLibrary()}) {
+            csvLibrary(library);
+            String[] files = files(4);
+            assertEquals(4, library.exportPlaylists(files));
+            assertEquals(0, library.exportPlaylists(files));
+            library.insertSong(2, 3, new Song("New", "B", 2010, 5, "new.wav"));
+            library.reversePlaylist(0);
+            assertEquals(2, library.exportPlaylists(files));
+            library.getPlaylists().get(1).getLast().getSong().setPopularity(7);
+            assertEquals(1, library.exportPlaylists(files));
+            assertEquals(0, library.exportPlaylists(files));
+        }
+    }
+
+    @Test
+    void createPlaylistReadsBackTheExportedSongs() {
+        PlaylistLibrary library = csvLibrary(new PlaylistLibrary());
+        Random random = new Random(1);
+        library.getPlaylists().add(TestPlaylists.generate(20000, "G", random));
+        library.insertSong(4, 3, new Song("Ünïcødé ☃ 𝄞", "Ärtist", -5, Integer.MIN_VALUE, "x y.wav"));
+        library.insertSong(4, 1, new Song("", "", Integer.MAX_VALUE, -1, ""));
+        library.shufflePlaylist(4);
+        String[] files = files(5);
+        library.exportPlaylists(files);
+        for (int i = 0; i < 5; i++) {
+            Playlist read = new PlaylistLibrary().createPlaylist(files[i]);
+            assertEquals(lines(library.getPlaylists().get(i)), lines(read), files[i]);
+        }
+    }
+
+    @Test
+    void songsThatWouldReadBackDifferentlyAreRejected() {
+        CsvPlaylistWriter writer = new CsvPlaylistWriter();
+        Path file = dir.resolve("comma.csv");
+        for (Song song : new Song[] {new Song("a,b", "c", 1, 1, "l"), new Song("a", "b\nc", 1, 1, "l"),
+                                     new Song("a", "b", 1, 1, "l\r")}) {
+            SongNode node = new SongNode(song, null);
+            node.setNext(node);
+            assertThrows(IllegalArgumentException.class, () -> writer.write(new Playlist(node, 1), file.toString()));
+            assertFalse(Files.exists(file));
+            assertFalse(Files.exists(dir.resolve("comma.csv.tmp")));
+        }
+    }
+
+    @Test
+    void unreadableFilesAreRejected() {
+        PlaylistLibrary library = csvLibrary(new PlaylistLibrary());
+        String missing = dir.resolve("missing.csv").toString();
+        assertThrows(IllegalArgumentException.class, () -> new CsvPlaylistReader().read(missing));
+        assertThrows(IllegalArgumentException.class, () -> library.addPlaylist(missing, 4));
+        assertEquals(4, library.getPlaylists().size());
+    }
+
+    private static PlaylistLibrary csvLibrary(PlaylistLibrary library) {
+        for (int i = 1; i <= 4; i++) {
+            library.addPlaylist("playlist" + i + ".csv", i - 1);
+        }
+        return library;
+    }
+
+    private String[] files(int count) {
+        String[] files = new String[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = dir.resolve("export" + i + ".csv").toString();
+        }
+        return files;
+    }
+
+    // the fields of every song as written, null Strings being written empty
+    private static String lines(Playlist playlist) {
+        StringBuilder lines = new StringBuilder();
+        for (Song song : TestPlaylists.songs(playlist)) {
+            lines.append(text(song.getSongName())).append('|').append(text(song.getArtist())).append('|')
+                 .append(song.getYear()).append('|').append(song.getPopularity()).append('|')
+                 .append(text(song.getFileName())).append('\n');
+        }
+        return lines.toString();
+    }
+
+    private static String text(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,112 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the treap of IndexedPlaylist against its ring: the node at every
+ * position and the position of every node must match a walk along the ring.
+ */
+
+class IndexedPlaylistTest {
+
+    @Test
+    void insertAndRemoveMatchAList() {
+        Random random = new Random(1);
+        IndexedPlaylist playlist = new IndexedPlaylist();
+        List<Song> expected = new ArrayList<>();
+        for (int k = 0; k < 5000; k++) {
+            if (expected.isEmpty() || random.nextInt(3) > 0) {
+                int position = 1 + random.nextInt(expected.size() + 1);
+                Song song = new Song("S" + k, "A", 2000, k % 100);
+                assertTrue(playlist.insert(position, song));
+                expected.add(position - 1, song);
+            } else {
+                int position = 1 + random.nextInt(expected.size());
+                SongNode prev = position == 1 ? playlist.getLast() : playlist.getNode(position - 1);
+                assertSame(expected.remove(position - 1), playlist.removeAfter(prev).getSong());
+            }
+            if (k % 100 == 0) {
+                assertMatchesRing(playlist);
+            }
+        }
+        assertEquals(expected, TestPlaylists.songs(playlist));
+        assertMatchesRing(playlist);
+    }
+
+    @Test
+    void outOfRangePositionsGiveNull() {
+        IndexedPlaylist playlist = new IndexedPlaylist(TestPlaylists.generate(10, "P", new Random(2)));
+        assertNull(playlist.getNode(0));
+        assertNull(playlist.getNode(11));
+        assertNull(playlist.get(-1));
+        assertEquals(0, playlist.positionOf(new SongNode(new Song("P0", "A0", 2000, 99), null)));
+        assertEquals(false, playlist.insert(12, new Song("late", "A", 2000, 1)));
+    }
+
+    @Test
+    void reverseFlipsPositions() {
+        IndexedPlaylist playlist = new IndexedPlaylist(TestPlaylists.generate(100, "P", new Random(3)));
+        List<Song> songs = TestPlaylists.songs(playlist);
+        assertSame(songs.get(0), playlist.get(1));  // builds the tree before it is flipped
+        playlist.reverse();
+        for (int i = 1; i <= 100; i++) {
+            assertSame(songs.get(100 - i), playlist.get(i));
+        }
+        assertMatchesRing(playlist);
+    }
+
+    @Test
+    void ringChangedFromOutsideIsReindexed() {
+        IndexedPlaylist playlist = new IndexedPlaylist(TestPlaylists.generate(50, "P", new Random(4)));
+        assertMatchesRing(playlist);
+        // drop the first song behind the tree's back
+        SongNode last = playlist.getLast();
+        last.setNext(last.getNext().getNext());
+        playlist.setSize(49);
+        assertMatchesRing(playlist);
+    }
+
+    @Test
+    void libraryEditsKeepTheTreeInStep() {
+        for (int round = 0; round < 40; round++) {
+            Random random = new Random(round);
+            PlaylistLibrary library = round % 2 == 0 ? new PlaylistLibrary() : new ConcurrentPlaylistLibrary();
+            library.setIndexSongs(round % 3 == 0);
+            ArrayList<Playlist> playlists = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+                playlists.add(TestPlaylists.generate(random.nextInt(40), "P" + j + "_", random));
+            }
+            library.setPlaylists(playlists);
+            for (int j = 0; j < 3; j++) {
+                library.indexPlaylist(j);
+            }
+            for (int k = 0; k < 300; k++) {
+                TestPlaylists.randomEdit(library, random, k);
+                for (Playlist playlist : library.getPlaylists()) {
+                    if (playlist instanceof IndexedPlaylist) {
+                        assertMatchesRing((IndexedPlaylist) playlist);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertMatchesRing(IndexedPlaylist playlist) {
+        SongNode ptr = playlist.getLast();
+        for (int i = 1; i <= playlist.getSize(); i++) {
+            ptr = ptr.getNext();
+            assertSame(ptr, playlist.getNode(i), "node at " + i);
+            assertEquals(i, playlist.positionOf(ptr), "position of node " + i);
+        }
+        assertSame(playlist.getLast(), ptr);
+    }
+}
@@ -0,0 +1,130 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks searchSongs against a walk over every song while the playlists
+ * change under the index.
+ */
+
+class LibraryIndexTest {
+    private static final String[] WORDS = {"love", "lovely", "Lover", "hey", "Jude", "let", "it", "be", "the"};
+
+    @Test
+    void lessPopularMatchDoesNotPushOutAFullTopList() {
+        SongNode first = null;
+        SongNode last = null;
+        for (int i = 0; i < 16; i++) {
+            SongNode node = new SongNode(new Song("alpha " + i, "A", 2000, 100 - i), null);
+            if (first == null) first = node;
+            else last.setNext(node);
+            last = node;
+        }
+        last.setNext(first);
+        ArrayList<Playlist> playlists = new ArrayList<>();
+        playlists.add(new Playlist(last, 16));
+        PlaylistLibrary library = new PlaylistLibrary(playlists);
+        library.setIndexLibrary(true);
+        List<Integer> before = popularities(library.searchSongs("alp", 16));
+
+        library.insertSong(0, 1, new Song("alpha late", "A", 2000, 1));
+
+        assertEquals(before, popularities(library.searchSongs("alp", 16)));
+        assertEquals(1, (int) popularities(library.searchSongs("alp", 17)).get(16));
+    }
+
+    @Test
+    void searchMatchesAWalkOverEverySong() {
+        Random random = new Random(5);
+        ArrayList<Playlist> playlists = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            playlists.add(generate(random, 200));
+        }
+        PlaylistLibrary library = new PlaylistLibrary(playlists);
+        library.setIndexLibrary(true);
+        String[] queries = {"lo", "LOVE", "hey j", "let it", "the", "l", "x", "love lo"};
+        for (int k = 0; k < 3000; k++) {
+            int i = random.nextInt(library.getPlaylists().size());
+            Playlist playlist = library.getPlaylists().get(i);
+            int op = random.nextInt(10);
+            if (op < 5) {
+                library.insertSong(i, 1 + random.nextInt(playlist.getSize() + 1),
+                        new Song(name(random), "A" + random.nextInt(20), 2000, random.nextInt(100)));
+            } else if (op < 8 && playlist.getSize() > 0) {
+                List<Song> songs = TestPlaylists.songs(playlist);
+                library.removeSong(i, songs.get(random.nextInt(songs.size())));
+            } else {
+                String query = queries[random.nextInt(queries.length)];
+                int limit = 1 + random.nextInt(random.nextBoolean() ? 16 : 40);
+                assertEquals(expected(library, query, limit), popularities(library.searchSongs(query, limit)),
+                        "'" + query + "' top " + limit + " after " + k + " changes");
+            }
+        }
+    }
+
+    private static Playlist generate(Random random, int n) {
+        SongNode first = null;
+        SongNode last = null;
+        for (int i = 0; i < n; i++) {
+            SongNode node = new SongNode(new Song(name(random), "A" + random.nextInt(20), 2000, random.nextInt(100)), null);
+            if (first == null) first = node;
+            else last.setNext(node);
+            last = node;
+        }
+        last.setNext(first);
+        return new Playlist(last, n);
+    }
+
+    private static String name(Random random) {
+        StringBuilder name = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+        for (int n = random.nextInt(3); n > 0; n--) {
+            name.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return name.toString();
+    }
+
+    // the popularities of the limit most popular songs matching query, found by walking every song
+    private static List<Integer> expected(PlaylistLibrary library, String query, int limit) {
+        String[] terms = query.toLowerCase(Locale.ROOT).trim().split(" +");
+        List<Integer> popularities = new ArrayList<>();
+        for (Playlist playlist : library.getPlaylists()) {
+            for (Song song : TestPlaylists.songs(playlist)) {
+                List<String> words = new ArrayList<>();
+                Collections.addAll(words, song.getSongName().toLowerCase(Locale.ROOT).split(" "));
+                words.add(song.getArtist().toLowerCase(Locale.ROOT));
+                if (matches(words, terms)) {
+                    popularities.add(song.getPopularity());
+                }
+            }
+        }
+        popularities.sort(Collections.reverseOrder());
+        return popularities.subList(0, Math.min(limit, popularities.size()));
+    }
+
+    // every term but the last is a whole word, the last one a prefix
+    private static boolean matches(List<String> words, String[] terms) {
+        for (int i = 0; i < terms.length - 1; i++) {
+            if (!words.contains(terms[i])) return false;
+        }
+        for (String word : words) {
+            if (word.startsWith(terms[terms.length - 1])) return true;
+        }
+        return false;
+    }
+
+    private static List<Integer> popularities(List<LibraryIndex.Hit> hits) {
+        List<Integer> popularities = new ArrayList<>();
+        for (LibraryIndex.Hit hit : hits) {
+            popularities.add(hit.getNode().getSong().getPopularity());
+        }
+        return popularities;
+    }
+}
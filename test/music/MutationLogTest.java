@@ -0,0 +1,132 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovers libraries from a snapshot and a mutation log after random edits,
+ * after a crash and after a crash that tore the end of the log.
+ */
+
+class MutationLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoveryReplaysEveryChange() {
+        for (int round = 0; round < 24; round++) {
+            Random random = new Random(round);
+            boolean concurrent = round % 2 == 1;
+            PlaylistLibrary library = library(concurrent, random);
+            library.setIndexSongs(round % 3 == 0);
+            library.setCheckpointBytes(round % 4 == 0 ? 2000 : 1L << 40);
+            library.openLog(file("snap"), file("log"), round % 3, 0);
+            for (int k = 0; k < 200; k++) {
+                TestPlaylists.randomEdit(library, random, k);
+            }
+            String expected = TestPlaylists.state(library);
+            library.closeLog();
+
+            assertEquals(expected, TestPlaylists.state(recover(concurrent)), "round " + round);
+            // recovery took a checkpoint, which recovers the same library again
+            assertEquals(expected, TestPlaylists.state(recover(concurrent)), "round " + round + " again");
+        }
+    }
+
+    @Test
+    void crashAfterSyncedChangesLosesNothing() {
+        for (int round = 0; round < 8; round++) {
+            Random random = new Random(100 + round);
+            boolean concurrent = round % 2 == 1;
+            PlaylistLibrary library = library(concurrent, random);
+            library.openLog(file("snap"), file("log"), 1, 0);
+            for (int k = 0; k < 150; k++) {
+                TestPlaylists.randomEdit(library, random, k);
+            }
+            // added and removed playlists wait for the next record
+            library.logPlaylists();
+            String expected = TestPlaylists.state(library);
+            // no closeLog: the process stops here
+
+            assertEquals(expected, TestPlaylists.state(recover(concurrent)), "round " + round);
+        }
+    }
+
+    @Test
+    void tornTailRecoversAnEarlierState() throws IOException {
+        for (int round = 0; round < 6; round++) {
+            Random random = new Random(200 + round);
+            boolean concurrent = round % 2 == 1;
+            PlaylistLibrary library = library(concurrent, random);
+            library.setCheckpointBytes(1L << 40);
+            library.openLog(file("snap"), file("log"), 0, 0);
+            List<String> states = new ArrayList<>();
+            states.add(TestPlaylists.state(library));
+            for (int k = 0; k < 60; k++) {
+                TestPlaylists.randomEdit(library, random, k);
+                library.logPlaylists();
+                states.add(TestPlaylists.state(library));
+            }
+            // the last record, which every cut damages, makes a state of its own
+            library.insertSong(0, 1, new Song("Last", "L", 2020, 1));
+            String last = TestPlaylists.state(library);
+            library.closeLog();
+            Path snapshot = dir.resolve("snap");
+            Path log = dir.resolve("log");
+            Path savedSnapshot = Files.copy(snapshot, dir.resolve("snap.saved"), StandardCopyOption.REPLACE_EXISTING);
+            Path savedLog = Files.copy(log, dir.resolve("log.saved"), StandardCopyOption.REPLACE_EXISTING);
+            long length = Files.size(savedLog);
+
+            for (int cut = 1; cut < 40 && cut < length - 16; cut++) {
+                Files.copy(savedSnapshot, snapshot, StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(savedLog, log, StandardCopyOption.REPLACE_EXISTING);
+                try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+                    if (cut % 2 == 0) {
+                        file.setLength(length - cut);
+                    } else {
+                        // a half written record: the bytes are there but wrong
+                        file.seek(length - cut);
+                        int b = file.read();
+                        file.seek(length - cut);
+                        file.write(~b);
+                    }
+                }
+                String recovered = TestPlaylists.state(recover(concurrent));
+                assertTrue(states.contains(recovered), "round " + round + " cut " + cut);
+                assertNotEquals(last, recovered, "round " + round + " cut " + cut + " kept the damaged record");
+            }
+        }
+    }
+
+    private PlaylistLibrary library(boolean concurrent, Random random) {
+        ArrayList<Playlist> playlists = new ArrayList<>();
+        for (int j = 0; j < 3; j++) {
+            playlists.add(TestPlaylists.generate(random.nextInt(30), "P" + j + "_", random));
+        }
+        return concurrent ? new ConcurrentPlaylistLibrary(playlists) : new PlaylistLibrary(playlists);
+    }
+
+    private PlaylistLibrary recover(boolean concurrent) {
+        PlaylistLibrary library = concurrent ? new ConcurrentPlaylistLibrary() : new PlaylistLibrary();
+        library.openLog(file("snap"), file("log"), 1, 0);
+        library.closeLog();
+        return library;
+    }
+
+    private String file(String name) {
+        return dir.resolve(name).toString();
+    }
+}
@@ -0,0 +1,73 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs streams on a scheduler of one thread, with and without detaching
+ * them. No audio is played.
+ */
+
+class PlaybackSchedulerTest {
+
+    @Test
+    void detachedStreamsFreeTheirThread() throws InterruptedException {
+        PlaybackScheduler scheduler = new PlaybackScheduler(1, "test");
+        AtomicInteger stops = new AtomicInteger();
+        PlaybackScheduler.Stream[] loops = new PlaybackScheduler.Stream[5];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = scheduler.submit("loop" + i, stream -> stream.detach(stops::incrementAndGet));
+        }
+        CountDownLatch played = new CountDownLatch(1);
+        PlaybackScheduler.Stream after = scheduler.submit("after the loops", stream -> played.countDown());
+        assertTrue(played.await(10, TimeUnit.SECONDS), "a stream waited for the detached loops");
+        for (int i = 0; i < 1000 && !after.isDone(); i++) {
+            Thread.sleep(1);
+        }
+
+        for (PlaybackScheduler.Stream loop : loops) {
+            assertTrue(loop.isPlaying());
+        }
+        assertEquals(5, scheduler.activeStreams());
+        for (PlaybackScheduler.Stream loop : loops) {
+            loop.stop();
+            loop.stop();
+            assertTrue(loop.isDone());
+        }
+        assertEquals(5, stops.get());
+        assertEquals(0, scheduler.activeStreams());
+        assertEquals(5, scheduler.stoppedStreams());
+    }
+
+    @Test
+    void stopWhilePlayingRunsTheActionOnce() throws InterruptedException {
+        PlaybackScheduler scheduler = new PlaybackScheduler(2, "test");
+        for (int round = 0; round < 200; round++) {
+            AtomicInteger stops = new AtomicInteger();
+            CountDownLatch starting = new CountDownLatch(1);
+            PlaybackScheduler.Stream stream = scheduler.submit("loop", s -> {
+                starting.countDown();
+                s.detach(stops::incrementAndGet);
+            });
+            assertTrue(starting.await(10, TimeUnit.SECONDS));
+            stream.stop();
+            for (int i = 0; i < 1000 && !stream.isDone(); i++) {
+                Thread.sleep(1);
+            }
+            assertTrue(stream.isDone(), "round " + round);
+            assertFalse(stream.isPlaying());
+            assertEquals(1, stops.get(), "round " + round);
+        }
+        for (int i = 0; i < 1000 && scheduler.activeStreams() > 0; i++) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, scheduler.activeStreams());
+    }
+}
@@ -0,0 +1,70 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Merges playlists of random popularities and checks the order and the
+ * ring of the result.
+ */
+
+class PlaylistLibraryTest {
+
+    @Test
+    void mergeKeepsPopularityOrderAndPlaylistOrderOnTies() {
+        Random random = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            int count = 2 + random.nextInt(4);
+            ArrayList<Playlist> playlists = new ArrayList<>();
+            List<Song> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Playlist playlist = sorted(random.nextInt(20), "P" + i + "_", random);
+                playlists.add(playlist);
+                expected.addAll(TestPlaylists.songs(playlist));
+            }
+            // a stable sort keeps the songs of lower playlists first on ties
+            expected.sort(Comparator.comparingInt(Song::getPopularity).reversed());
+            PlaylistLibrary library = new PlaylistLibrary(playlists);
+            if (round % 3 == 0) {
+                library.indexPlaylist(0);
+            }
+
+            int[] indexes = new int[count];
+            for (int i = 0; i < count; i++) {
+                indexes[i] = count - 1 - i;
+            }
+            if (count == 2 && round % 2 == 0) {
+                library.mergePlaylists(0, 1);
+            } else {
+                library.mergePlaylists(indexes);
+            }
+
+            assertEquals(1, library.getPlaylists().size(), "round " + round);
+            Playlist merged = library.getPlaylists().get(0);
+            assertEquals(expected.size(), merged.getSize(), "round " + round);
+            assertEquals(expected, TestPlaylists.songs(merged), "round " + round);
+            if (!expected.isEmpty()) {
+                assertSame(expected.get(expected.size() - 1), merged.getLast().getSong(), "round " + round);
+                assertSame(expected.get(0), merged.getLast().getNext().getSong(), "round " + round);
+            }
+        }
+    }
+
+    // n songs in decreasing popularity, with many ties
+    private static Playlist sorted(int n, String tag, Random random) {
+        Playlist playlist = TestPlaylists.generate(n, tag, random);
+        int popularity = 10;
+        for (Song song : TestPlaylists.songs(playlist)) {
+            popularity -= random.nextInt(2);
+            song.setPopularity(Math.max(0, popularity));
+        }
+        return playlist;
+    }
+}
@@ -0,0 +1,129 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Saves libraries to a snapshot and loads them back, and loads damaged
+ * snapshots.
+ */
+
+class PlaylistSnapshotTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void loadGivesBackTheSavedLibrary() {
+        PlaylistLibrary library = new PlaylistLibrary();
+        for (int i = 1; i <= 4; i++) {
+            library.addPlaylist("playlist" + i + ".csv", i - 1);
+        }
+        Random random = new Random(1);
+        ArrayList<Playlist> playlists = library.getPlaylists();
+        playlists.add(TestPlaylists.generate(500, "G", random));
+        playlists.add(new Playlist());
+        library.insertSong(5, 1, new Song("Ünïcødé ☃ 𝄞", "Ärtist", -5, Integer.MIN_VALUE, "x y.wav"));
+        library.insertSong(5, 2, new Song(null, null, 0, 0, null));
+        library.insertSong(5, 1, new Song("", "", Integer.MAX_VALUE, -1, ""));
+
+        String snapshot = dir.resolve("library.snap").toString();
+        library.saveSnapshot(snapshot);
+        PlaylistLibrary loaded = new PlaylistLibrary();
+        loaded.loadSnapshot(snapshot);
+
+        assertEquals(TestPlaylists.state(library), TestPlaylists.state(loaded));
+    }
+
+    @Test
+    void sharedSongsStaySharedAndEmptyLibrariesLoad() {
+        Song shared = new Song("Shared", "A", 2001, 10, "shared.wav");
+        ArrayList<Playlist> playlists = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            SongNode node = new SongNode(shared, null);
+            node.setNext(node);
+            playlists.add(new Playlist(node, 1));
+        }
+        String snapshot = dir.resolve("shared.snap").toString();
+        PlaylistSnapshot.save(playlists, snapshot);
+        ArrayList<Playlist> loaded = PlaylistSnapshot.load(snapshot);
+        assertSame(loaded.get(0).getLast().getSong(), loaded.get(1).getLast().getSong());
+
+        PlaylistSnapshot.save(new ArrayList<Playlist>(), snapshot);
+        assertEquals(0, PlaylistSnapshot.load(snapshot).size());
+    }
+
+    @Test
+    void damagedSnapshotsAreRejected() throws IOException {
+        PlaylistLibrary library = new PlaylistLibrary();
+        for (int i = 1; i <= 4; i++) {
+            library.addPlaylist("playlist" + i + ".csv", i - 1);
+        }
+        Path snapshot = dir.resolve("library.snap");
+        library.saveSnapshot(snapshot.toString());
+        byte[] bytes = Files.readAllBytes(snapshot);
+
+        Random random = new Random(2);
+        Path damaged = dir.resolve("damaged.snap");
+        for (int k = 0; k < 1000; k++) {
+            byte[] copy = bytes.clone();
+            for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                copy[random.nextInt(copy.length)] = (byte) random.nextInt(256);
+            }
+            if (random.nextInt(4) == 0) {
+                copy = Arrays.copyOf(copy, random.nextInt(copy.length));
+            }
+            Files.write(damaged, copy);
+            try {
+                // a damaged string or number can still be a valid snapshot
+                List<Playlist> loaded = PlaylistSnapshot.load(damaged.toString());
+                for (Playlist playlist : loaded) {
+                    assertEquals(playlist.getSize(), TestPlaylists.songs(playlist).size());
+                }
+            } catch (IllegalArgumentException e) {
+                // expected for most
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> PlaylistSnapshot.load(dir.resolve("missing.snap").toString()));
+    }
+
+    @Test
+    void onlyMinusOneIsTheIdOfNull() throws IOException {
+        PlaylistLibrary library = new PlaylistLibrary();
+        library.addPlaylist("playlist1.csv", 0);
+        Path snapshot = dir.resolve("library.snap");
+        library.saveSnapshot(snapshot.toString());
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+
+        // skip the magic, the version and the string table to the name id of the first song
+        bytes.position(8);
+        for (int i = bytes.getInt(); i > 0; i--) {
+            bytes.position(bytes.position() + 4 + bytes.getInt());
+        }
+        int nameId = bytes.position() + 4;
+
+        Path damaged = dir.resolve("damaged.snap");
+        bytes.putInt(nameId, -1);
+        Files.write(damaged, bytes.array());
+        assertNull(PlaylistSnapshot.load(damaged.toString()).get(0).getLast().getNext().getSong().getSongName());
+
+        for (int id : new int[] {-2, -7, Integer.MIN_VALUE}) {
+            bytes.putInt(nameId, id);
+            Files.write(damaged, bytes.array());
+            assertThrows(IllegalArgumentException.class, () -> PlaylistSnapshot.load(damaged.toString()), "id " + id);
+        }
+    }
+}
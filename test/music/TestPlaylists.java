@@ -0,0 +1,118 @@
+package music;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Playlists and random library edits shared by the tests.
+ */
+
+final class TestPlaylists {
+    private TestPlaylists() { }
+
+    /*
+     * Links n synthetic songs into a playlist, in decreasing popularity like
+     * the csv files. Every third song has no link.
+     */
+    static Playlist generate(int n, String tag, Random random) {
+        SongNode first = null;
+        SongNode last = null;
+        for (int i = 0; i < n; i++) {
+            Song song = new Song(tag + i, "A" + (i % 7), 2000 + random.nextInt(20), 99 - i * 99 / Math.max(1, n),
+                    i % 3 == 0 ? null : tag + i + ".wav");
+            SongNode node = new SongNode(song, null);
+            if (first == null) first = node;
+            else last.setNext(node);
+            last = node;
+        }
+        if (last != null) last.setNext(first);
+        return new Playlist(last, n);
+    }
+
+    /*
+     * Returns the songs of a playlist in order, walking size nodes of the ring
+     */
+    static List<Song> songs(Playlist playlist) {
+        List<Song> songs = new ArrayList<>();
+        SongNode ptr = playlist.getLast();
+        for (int i = 0; ptr != null && i < playlist.getSize(); i++) {
+            ptr = ptr.getNext();
+            songs.add(ptr.getSong());
+        }
+        return songs;
+    }
+
+    /*
+     * Returns every playlist of the library with every field of its songs,
+     * for comparing two libraries
+     */
+    static String state(PlaylistLibrary library) {
+        if (library.getPlaylists() == null) {
+            return "null";
+        }
+        StringBuilder state = new StringBuilder();
+        for (Playlist playlist : library.getPlaylists()) {
+            state.append('[').append(playlist.getSize()).append(':');
+            for (Song song : songs(playlist)) {
+                state.append(song).append('|').append(song.getLink()).append(',');
+            }
+            state.append(']');
+        }
+        return state.toString();
+    }
+
+    /*
+     * Makes one random change to the library through its public methods.
+     * Song names are numbered by k so that they stay distinct.
+     */
+    static void randomEdit(PlaylistLibrary library, Random random, int k) {
+        int n = library.getPlaylists().size();
+        int i = random.nextInt(Math.max(1, n));
+        int op = random.nextInt(100);
+        if (n == 0 || op < 5) {
+            library.addPlaylist("playlist" + (1 + random.nextInt(4)) + ".csv", random.nextInt(n + 1));
+        } else if (op < 35) {
+            int size = library.getPlaylists().get(i).getSize();
+            library.insertSong(i, 1 + random.nextInt(size + 1),
+                    new Song("X" + k, "B", 2010, random.nextInt(100), random.nextBoolean() ? "x.wav" : null));
+        } else if (op < 50) {
+            List<Song> songs = songs(library.getPlaylists().get(i));
+            if (!songs.isEmpty()) library.removeSong(i, songs.get(random.nextInt(songs.size())));
+        } else if (op < 55) {
+            List<Song> songs = songs(library.getPlaylists().get(i));
+            List<Song> remove = new ArrayList<>();
+            for (int j = 0; j < songs.size() && j < 3; j++) {
+                if (random.nextBoolean()) remove.add(songs.get(j));
+            }
+            remove.add(new Song("none", "none", 1, 1));
+            library.removeSongs(i, remove);
+        } else if (op < 62) {
+            library.reversePlaylist(i);
+        } else if (op < 68) {
+            library.setLegacyShuffle(random.nextBoolean());
+            library.shufflePlaylist(i);
+        } else if (op < 74) {
+            library.sortPlaylist(i);
+        } else if (op < 80 && n > 1) {
+            library.mergePlaylists(i, random.nextInt(n));
+        } else if (op < 84 && n > 2) {
+            library.mergePlaylists(i, random.nextInt(n), random.nextInt(n));
+        } else if (op < 87 && n > 1) {
+            library.removePlaylist(i);
+        } else if (op < 90) {
+            library.indexPlaylist(i);
+        } else if (op < 92) {
+            ArrayList<Playlist> reversed = new ArrayList<>(library.getPlaylists());
+            Collections.reverse(reversed);
+            library.setPlaylists(reversed);
+        } else if (op < 94) {
+            ArrayList<Playlist> added = new ArrayList<>(library.getPlaylists());
+            added.add(generate(5, "G" + k + "_", random));
+            library.setPlaylists(added);
+        } else {
+            library.insertSong(i, 1, new Song("Y" + k, "C", 1999, 50, "y.wav"));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package music;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Maps a 16-bit PCM WAV file and reads it before and after close().
+ */
+
+class WavFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void viewsStayReadableAfterClose() throws IOException {
+        short[] pcm = new short[1000];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (i * 37 - 18000);
+        }
+        Path path = write(pcm);
+
+        WavFile wav = WavFile.open(path.toFile());
+        assertEquals(pcm.length, wav.getFrames());
+        ShortBuffer samples = wav.samples();
+        wav.close();
+        wav.close();
+
+        short[] read = new short[samples.remaining()];
+        samples.get(read);
+        for (int i = 0; i < pcm.length; i++) {
+            assertEquals(pcm[i], read[i]);
+        }
+        assertThrows(IllegalStateException.class, wav::samples);
+        assertThrows(IllegalStateException.class, wav::stream);
+    }
+
+    // a mono 44.1 kHz 16-bit PCM file holding pcm
+    private Path write(short[] pcm) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(44 + 2 * pcm.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(0x46464952).putInt(36 + 2 * pcm.length).putInt(0x45564157);
+        bytes.putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 1)
+             .putInt(44100).putInt(2 * 44100).putShort((short) 2).putShort((short) 16);
+        bytes.putInt(0x61746164).putInt(2 * pcm.length);
+        for (short sample : pcm) {
+            bytes.putShort(sample);
+        }
+        Path path = dir.resolve("tone.wav");
+        Files.write(path, bytes.array());
+        return path;
+    }
+}